@@ -4,17 +4,83 @@ import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import sondoannam.github.jfr.HttpExchangeEvent;
+import sondoannam.github.jfr.JfrRecorder;
+import sondoannam.github.services.ApduRecorder;
+import sondoannam.github.services.CardMirrorStore;
+import sondoannam.github.services.CardResult;
+import sondoannam.github.services.CardScheduler;
 import sondoannam.github.services.CardService;
-
+import sondoannam.github.services.PointsLedger;
+import sondoannam.github.services.ProvisioningEngine;
+import sondoannam.github.services.ReaderPool;
+import sondoannam.github.services.RequestContext;
+import sondoannam.github.services.SignatureVerifier;
+import sondoannam.github.services.TerminalRegistry;
+import sondoannam.github.services.WarmupService;
+import sondoannam.github.utils.HexUtils;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Main {
     private static CardService cardService = new CardService();
     private static Gson gson = new Gson();
+    private static final int HTTP_WORKER_THREADS = 32;
+
+    // Deadline mặc định cho 1 request (ms); lệnh chưa chạy quá hạn sẽ bị huỷ
+    private static final long DEFAULT_DEADLINE_MS = 10_000;
+    // Deadline riêng cho endpoint truyền dữ liệu dài
+    private static final Map<String, Long> ENDPOINT_DEADLINES_MS = Map.of(
+            "/connect", 15_000L,
+            "/verify-pin", 5_000L,
+            "/card-id", 5_000L,
+            "/upload-image", 30_000L,
+            "/read-image", 20_000L,
+            "/get-raw-data", 20_000L,
+            "/export-raw", 20_000L
+    );
+    // Pool dùng chung cho các tác vụ theo từng đầu đọc của /export-raw
+    private static final ExecutorService exportExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "export-raw");
+        t.setDaemon(true);
+        return t;
+    });
+    // Gợi ý client thử lại sau bao nhiêu giây khi đầu đọc quá tải
+    private static final int RETRY_AFTER_SECONDS = 2;
+    private static final String MIRROR_FILE = "card-mirror.dat";
+    private static final String POINTS_JOURNAL_FILE = "points-journal.log";
+    private static final long POINTS_FLUSH_INTERVAL_MS = 2_000;
+    private static PointsLedger pointsLedger;
+    private static final String CARD_KEYS_FILE = "card-keys.json";
+    private static final long CHALLENGE_TTL_MS = 60_000;
+    // Số challenge chưa dùng tối đa giữ trong bộ nhớ
+    private static final int MAX_CHALLENGES = 10_000;
+    private static SignatureVerifier signatureVerifier;
+    private static ReaderPool readerPool;
+    private static final String JFR_DIR = "recordings";
+    private static JfrRecorder jfrRecorder;
+    // Thời gian chờ thao tác viên rút/cắm thẻ mới khi phát hành hàng loạt
+    private static final long PROVISION_SWAP_TIMEOUT_MS = 60_000;
 
     static class UploadRequest {
         String hexData;
@@ -43,40 +109,120 @@ public class Main {
 
     static class UpdatePointsRequest { int points; }
 
+    static class RegisterResult {
+        String cardId;
+        String modulus;
+        String exponent;
+    }
+
+    static class IssueChallengeRequest { String cardId; }
+
+    static class VerifySignatureRequest {
+        String cardId;
+        String challenge;
+        String signature;
+    }
+
+    static class RecordingRequest {
+        String action;    // "start" | "stop"
+        String settings;  // Cấu hình JFR: "default" (mặc định) hoặc "profile"
+        long maxAgeSec;
+    }
+
+    static class AddPointsRequest {
+        String cardId; // Bỏ trống -> thẻ đang cắm
+        int delta;
+    }
+
     public static void main(String[] args) throws IOException {
         int port = 8081;
+
+        // Chế độ khởi động nhanh: --warmup [--preconnect] [--exit-after-warmup]
+        // --exit-after-warmup dùng cho lượt chạy "huấn luyện" tạo AppCDS archive (profile appcds)
+        boolean exitAfterWarmup = hasFlag(args, "--exit-after-warmup");
+        if (hasFlag(args, "--warmup") || exitAfterWarmup || Boolean.getBoolean("middleware.warmup")) {
+            List<String> warmupFailures = new WarmupService(cardService, gson).run(hasFlag(args, "--preconnect"),
+                    UploadRequest.class, PinRequest.class, UserInfoRequest.class, ChangePinRequest.class,
+                    ChallengeRequest.class, UpdatePointsRequest.class, AddPointsRequest.class,
+                    RegisterResult.class, IssueChallengeRequest.class, VerifySignatureRequest.class);
+            if (exitAfterWarmup) {
+                // Lượt huấn luyện AppCDS: bước lỗi -> archive thiếu class của bước đó
+                if (!warmupFailures.isEmpty()) {
+                    System.out.println("[WARN] AppCDS archive sẽ thiếu class của: " + String.join("; ", warmupFailures));
+                }
+                return;
+            }
+        }
+
+        start(port, cardService);
+        System.out.println("Java Middleware is running on port " + port);
+    }
+
+    /**
+     * Dựng và chạy HTTP server trên CardService cho trước
+     * (main dùng thẻ thật; công cụ load test truyền vào CardService gắn thẻ giả lập).
+     */
+    public static HttpServer start(int port, CardService service) throws IOException {
+        cardService = service;
+
+        // Mirror cục bộ các blob mã hóa trên thẻ (append-only, mmap)
+        cardService.setMirror(new CardMirrorStore(Paths.get(System.getProperty("mirror.path", MIRROR_FILE))));
+        // Sổ cộng điểm ghi-sau, flush định kỳ xuống thẻ
+        pointsLedger = new PointsLedger(Paths.get(System.getProperty("points.journal", POINTS_JOURNAL_FILE)),
+                cardService, Long.getLong("points.flushMs", POINTS_FLUSH_INTERVAL_MS));
+        // Public key của các thẻ đã đăng ký + kiểm tra chữ ký challenge tại chỗ
+        signatureVerifier = new SignatureVerifier(Paths.get(System.getProperty("keys.path", CARD_KEYS_FILE)),
+                System.getProperty("signature.algorithm", "SHA1withRSA"), CHALLENGE_TTL_MS, MAX_CHALLENGES);
+        readerPool = new ReaderPool(cardService, TerminalRegistry.shared());
+        jfrRecorder = new JfrRecorder(Paths.get(System.getProperty("jfr.dir", JFR_DIR)));
+
+        // Tắt Nagle: response nhỏ (JSON) không bị giữ lại ~40ms chờ delayed-ACK của client.
+        // Phải đặt trước khi HttpServer đầu tiên được tạo.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // API 1: Kiểm tra kết nối thẻ
-        server.createContext("/connect", new HttpHandler() {
+        route(server, "/connect", guarded("/connect", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange); // Cho phép Electron gọi
                 if ("GET".equals(exchange.getRequestMethod())) {
                     boolean success = cardService.connect();
+                    // Thẻ vừa cắm lại -> ghi luôn các điểm còn chờ
+                    if (success) pointsLedger.flushSoon();
                     sendResponse(exchange, 200, success ? "Connected" : "Failed");
                 }
             }
-        });
+        }));
 
         // API 2: Gửi lệnh APDU (Electron gửi Hex -> Java gửi thẻ -> Java trả Hex)
         // Đây là API quan trọng nhất, Electron chỉ cần gọi API này là làm chủ được thẻ
-        server.createContext("/apdu", new HttpHandler() {
+        route(server, "/apdu", guarded("/apdu", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
                 if ("POST".equals(exchange.getRequestMethod())) {
                     // Đọc body (Hex string) từ Electron
                     String body = new String(exchange.getRequestBody().readAllBytes());
+                    byte[] command;
+                    try {
+                        command = HexUtils.hexToBytes(body.trim());
+                    } catch (RuntimeException e) {
+                        sendResponse(exchange, 400, "Error: Invalid Hex String");
+                        return;
+                    }
                     // Gửi xuống thẻ
-                    String responseHex = cardService.sendAPDU(body.trim());
-                    // Trả về cho Electron
-                    sendResponse(exchange, 200, responseHex);
+                    CardResult<byte[]> result = cardService.transmitApdu(command);
+                    // Trả về cho Electron: Data + SW dạng Hex
+                    sendResponse(exchange, 200, result.isOk() ? HexUtils.bytesToHex(result.getValue()) : result.toString());
                 }
             }
-        });
+        }));
 
-        server.createContext("/register", new HttpHandler() {
+        route(server, "/register", guarded("/register", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -84,15 +230,21 @@ public class Main {
                     String json = new String(exchange.getRequestBody().readAllBytes());
                     PinRequest req = gson.fromJson(json, PinRequest.class);
 
-                    String result = cardService.registerCard(req.pin);
-                    // Result đã là JSON string rồi hoặc Error message
-//                    boolean isJson = result.startsWith("{");
-                    sendResponse(exchange, result.startsWith("Error") ? 500 : 200, result);
+                    CardResult<CardService.Registration> result = cardService.registerCard(req.pin);
+                    if (!result.isOk()) {
+                        sendError(exchange, 500, result);
+                        return;
+                    }
+
+                    // Giữ lại public key để /verify-signature kiểm tra chữ ký tại chỗ
+                    CardService.Registration reg = result.getValue();
+                    registerPublicKey(reg);
+                    sendResponse(exchange, 200, gson.toJson(toRegisterResult(reg)));
                 }
             }
-        });
+        }));
 
-        server.createContext("/verify-pin", new HttpHandler() {
+        route(server, "/verify-pin", guarded("/verify-pin", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -108,21 +260,22 @@ public class Main {
                     sendResponse(exchange, 200, jsonRes);
                 }
             }
-        });
+        }));
 
-        server.createContext("/card-id", new HttpHandler() {
+        route(server, "/card-id", guarded("/card-id", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
                 if ("GET".equals(exchange.getRequestMethod())) {
-                    String result = cardService.getCardId();
-                    sendResponse(exchange, result.startsWith("Error") ? 500 : 200, result);
+                    CardResult<String> result = cardService.getCardId();
+                    if (result.isOk()) sendResponse(exchange, 200, result.getValue());
+                    else sendError(exchange, 500, result);
                 }
             }
-        });
+        }));
 
         // API KÝ CHALLENGE
-        server.createContext("/sign-challenge", new HttpHandler() {
+        route(server, "/sign-challenge", guarded("/sign-challenge", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -133,16 +286,111 @@ public class Main {
                     // Ở đây ta giả sử huynh tạo class ChallengeRequest { String challenge; } cho rõ ràng
                     ChallengeRequest req = gson.fromJson(json, ChallengeRequest.class);
 
-                    String result = cardService.signChallenge(req.challenge);
+                    byte[] challenge;
+                    try {
+                        challenge = HexUtils.hexToBytes(req.challenge);
+                    } catch (RuntimeException e) {
+                        sendResponse(exchange, 400, "Error: Invalid Hex String");
+                        return;
+                    }
 
-                    // Xử lý kết quả trả về JSON
-                    int status = result.startsWith("Error") ? 400 : 200;
-                    sendResponse(exchange, status, result);
+                    // Chữ ký trả về dạng Hex
+                    CardResult<byte[]> result = cardService.signChallenge(challenge);
+                    if (result.isOk()) sendResponse(exchange, 200, HexUtils.bytesToHex(result.getValue()));
+                    else sendError(exchange, 400, result);
+                }
+            }
+        }));
+
+        // Phát challenge cho thẻ (không cần thẻ, không đi qua hàng đợi đầu đọc)
+        route(server, "/challenge", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    String json = new String(exchange.getRequestBody().readAllBytes());
+                    IssueChallengeRequest req = gson.fromJson(json, IssueChallengeRequest.class);
+
+                    String cardId = req != null && req.cardId != null ? req.cardId : cardService.getCurrentCardId();
+                    if (cardId == null || !signatureVerifier.hasKey(cardId)) {
+                        sendResponse(exchange, 404, "Error: Unknown card (register it first)");
+                        return;
+                    }
+
+                    String challenge;
+                    try {
+                        challenge = signatureVerifier.issueChallenge(cardId);
+                    } catch (IllegalStateException e) {
+                        exchange.getResponseHeaders().set("Retry-After", String.valueOf(CHALLENGE_TTL_MS / 1000));
+                        sendResponse(exchange, 503, "Error: " + e.getMessage() + ", retry later");
+                        return;
+                    }
+
+                    Map<String, Object> response = new HashMap<>();
+                    response.put("cardId", cardId);
+                    response.put("challenge", challenge);
+                    response.put("expiresInMs", signatureVerifier.getChallengeTtlMs());
+                    sendResponse(exchange, 200, gson.toJson(response));
                 }
             }
         });
 
-        server.createContext("/update-info", new HttpHandler() {
+        // Kiểm tra chữ ký (từ /sign-challenge) bằng public key đã cache
+        route(server, "/verify-signature", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    String json = new String(exchange.getRequestBody().readAllBytes());
+                    VerifySignatureRequest req = gson.fromJson(json, VerifySignatureRequest.class);
+
+                    if (req == null || req.cardId == null || req.challenge == null || req.signature == null) {
+                        sendResponse(exchange, 400, "Error: cardId, challenge and signature are required");
+                        return;
+                    }
+
+                    SignatureVerifier.VerifyResult result = signatureVerifier.verify(req.cardId, req.challenge, req.signature);
+                    sendResponse(exchange, result.valid ? 200 : 401, gson.toJson(result));
+                }
+            }
+        });
+
+        // Phát hành thẻ hàng loạt trên mọi đầu đọc. Body: manifest JSONL hoặc CSV.
+        // Chạy lâu (chờ người thay thẻ) nên không gắn deadline/hàng đợi của 1 đầu đọc.
+        route(server, "/provision", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    try {
+                        String manifest = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                        String swap = queryParam(exchange, "swapTimeoutMs");
+                        String imageDir = System.getProperty("provision.imageDir");
+                        ProvisioningEngine engine = new ProvisioningEngine(readerPool,
+                                swap != null ? Long.parseLong(swap) : PROVISION_SWAP_TIMEOUT_MS,
+                                imageDir != null ? Paths.get(imageDir) : null);
+
+                        List<ProvisioningEngine.ManifestEntry> entries = engine.parseManifest(manifest);
+                        System.out.println("[INFO] Phát hành " + entries.size() + " thẻ...");
+                        ProvisioningEngine.Report report = engine.run(entries);
+
+                        // Lưu public key của các thẻ vừa phát hành
+                        for (ProvisioningEngine.ProvisionedCard r : report.cards) {
+                            if (r.success) registerPublicKey(r.registration);
+                        }
+
+                        System.out.printf("[INFO] Phát hành xong: %d/%d thẻ, %.1f thẻ/phút%n",
+                                report.succeeded, report.total, report.cardsPerMinute);
+                        sendResponse(exchange, report.failed == 0 ? 200 : 207, gson.toJson(report));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        sendResponse(exchange, 400, "Error: " + e.getMessage());
+                    }
+                }
+            }
+        });
+
+        route(server, "/update-info", guarded("/update-info", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -164,10 +412,9 @@ public class Main {
                         String dataString = req.fullName + "|" + req.dob + "|" + req.address + "|" + req.phone;
 
                         // 2. Gửi xuống thẻ
-                        String result = cardService.updateUserInfo(req.pin, dataString);
-
-                        int status = result.startsWith("Success") ? 200 : 500;
-                        sendResponse(exchange, status, result);
+                        CardResult<Void> result = cardService.updateUserInfo(req.pin, dataString);
+                        if (result.isOk()) sendResponse(exchange, 200, "Success");
+                        else sendError(exchange, 500, result);
 
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -175,9 +422,9 @@ public class Main {
                     }
                 }
             }
-        });
+        }));
 
-        server.createContext("/update-points", new HttpHandler() {
+        route(server, "/update-points", guarded("/update-points", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -186,10 +433,45 @@ public class Main {
                         String jsonBody = new String(exchange.getRequestBody().readAllBytes()).trim();
                         UpdatePointsRequest req = gson.fromJson(jsonBody, UpdatePointsRequest.class);
 
-                        String result = cardService.updatePoints(req.points);
+                        CardResult<Void> result = cardService.updatePoints(req.points);
+                        if (result.isOk()) sendResponse(exchange, 200, "Success");
+                        else sendError(exchange, 500, result);
+                    } catch (Exception e) {
+                        sendResponse(exchange, 400, "Error: " + e.getMessage());
+                    }
+                }
+            }
+        }));
 
-                        int status = result.startsWith("Success") ? 200 : 500;
-                        sendResponse(exchange, status, result);
+        // Cộng/trừ điểm không cần chờ thẻ: ghi journal rồi trả về, flush xuống thẻ sau.
+        // Không đụng tới thẻ nên không xin suất hàng đợi đầu đọc (thẻ bận vẫn nhận điểm)
+        route(server, "/points/add", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    try {
+                        String jsonBody = new String(exchange.getRequestBody().readAllBytes()).trim();
+                        AddPointsRequest req = gson.fromJson(jsonBody, AddPointsRequest.class);
+
+                        String cardId = req.cardId != null ? req.cardId : cardService.getCurrentCardId();
+                        if (cardId == null || cardId.isEmpty()) {
+                            sendResponse(exchange, 400, "Error: cardId is required (no card connected)");
+                            return;
+                        }
+                        // Kiểm tra trước khi ghi journal: cardId sai (có dấu cách, xuống dòng...) làm hỏng dòng journal
+                        cardId = cardId.toUpperCase(Locale.ROOT);
+                        if (!PointsLedger.isValidCardId(cardId)) {
+                            sendResponse(exchange, 400, "Error: cardId must be 16 hex characters");
+                            return;
+                        }
+
+                        int pending = pointsLedger.add(cardId, req.delta);
+
+                        Map<String, Object> response = new HashMap<>();
+                        response.put("cardId", cardId);
+                        response.put("pendingDelta", pending);
+                        sendResponse(exchange, 202, gson.toJson(response));
                     } catch (Exception e) {
                         sendResponse(exchange, 400, "Error: " + e.getMessage());
                     }
@@ -197,7 +479,7 @@ public class Main {
             }
         });
 
-        server.createContext("/get-info-secure", new HttpHandler() {
+        route(server, "/get-info-secure", guarded("/get-info-secure", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -205,13 +487,14 @@ public class Main {
                     String json = new String(exchange.getRequestBody().readAllBytes());
                     PinRequest req = gson.fromJson(json, PinRequest.class);
 
-                    String result = cardService.getSecureInfo(req.pin);
-                    sendResponse(exchange, result.startsWith("Error") ? 500 : 200, result);
+                    CardResult<String> result = cardService.getSecureInfo(req.pin);
+                    if (result.isOk()) sendResponse(exchange, 200, result.getValue());
+                    else sendError(exchange, 500, result);
                 }
             }
-        });
+        }));
 
-        server.createContext("/upload-image", new HttpHandler() {
+        route(server, "/upload-image", guarded("/upload-image", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -233,10 +516,20 @@ public class Main {
                         // Log kiểm tra lại lần cuối
                         System.out.println("[INFO] Nhận yêu cầu upload ảnh. Độ dài Hex: " + realHexData.length());
 
-                        String result = cardService.uploadImageToCard(realHexData, request.pin);
+                        byte[] image;
+                        try {
+                            image = HexUtils.hexToBytes(realHexData);
+                        } catch (RuntimeException e) {
+                            sendResponse(exchange, 400, "Error: Invalid Hex String");
+                            return;
+                        }
 
-                        int status = result.startsWith("Success") ? 200 : 500;
-                        sendResponse(exchange, status, result);
+                        CardResult<Integer> result = cardService.uploadImage(image, request.pin);
+                        if (result.isOk()) {
+                            sendResponse(exchange, 200, "Success: Encrypted image uploaded (" + result.getValue() + " bytes)");
+                        } else {
+                            sendError(exchange, 500, result);
+                        }
 
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -244,9 +537,9 @@ public class Main {
                     }
                 }
             }
-        });
+        }));
 
-        server.createContext("/read-image", new HttpHandler() {
+        route(server, "/read-image", guarded("/read-image", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -261,12 +554,20 @@ public class Main {
                             return;
                         }
 
+                        // Range: bytes=a-b -> chỉ đọc + giải mã các block chứa đoạn đó
+                        int[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"));
+                        if (range != null) {
+                            sendImageRange(exchange, req.pin, range);
+                            return;
+                        }
+
                         // Gọi hàm đọc + giải mã
-                        String result = cardService.readImageFromCard(req.pin);
+                        CardResult<byte[]> result = cardService.readImage(req.pin);
+                        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
 
                         // Nếu thành công trả về Hex ảnh gốc, nếu lỗi trả về Error message
-                        int status = result.startsWith("Error") ? 500 : 200;
-                        sendResponse(exchange, status, result);
+                        if (result.isOk()) sendResponse(exchange, 200, HexUtils.bytesToHex(result.getValue()));
+                        else sendError(exchange, 500, result);
 
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -274,9 +575,9 @@ public class Main {
                     }
                 }
             }
-        });
+        }));
 
-        server.createContext("/change-pin", new HttpHandler() {
+        route(server, "/change-pin", guarded("/change-pin", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -294,9 +595,9 @@ public class Main {
                     sendResponse(exchange, 200, jsonRes);
                 }
             }
-        });
+        }));
 
-        server.createContext("/unblock-pin", new HttpHandler() {
+        route(server, "/unblock-pin", guarded("/unblock-pin", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
@@ -306,45 +607,398 @@ public class Main {
                     sendResponse(exchange, 200, jsonRes);
                 }
             }
-        });
+        }));
 
-        server.createContext("/get-raw-data", new HttpHandler() {
+        route(server, "/get-raw-data", guarded("/get-raw-data", new HttpHandler() {
             @Override
             public void handle(HttpExchange exchange) throws IOException {
                 handleCORS(exchange);
                 if ("GET".equals(exchange.getRequestMethod())) {
+                    Map<String, String> response = new HashMap<>();
+
+                    // 0. Thẻ đã biết -> đọc thẳng từ mirror cục bộ, không gửi APDU
+                    // GET /get-raw-data?cardId=XXXXXXXXXXXXXXXX
+                    String cardId = queryParam(exchange, "cardId");
+                    CardMirrorStore mirror = cardService.getMirror();
+                    // Mỗi loại chỉ get() 1 lần: bản ghi có thể bị invalidate ngay giữa lúc kiểm tra và đọc
+                    byte[] mirroredInfo = cardId != null && mirror != null
+                            ? mirror.get(cardId, CardMirrorStore.Kind.USER_INFO) : null;
+                    byte[] mirroredImage = mirroredInfo != null
+                            ? mirror.get(cardId, CardMirrorStore.Kind.IMAGE) : null;
+                    if (mirroredImage != null) {
+                        response.put("cardId", cardId);
+                        response.put("encryptedUserInfo", HexUtils.bytesToHex(mirroredInfo));
+                        response.put("encryptedImage", HexUtils.bytesToHex(mirroredImage));
+                        response.put("source", "mirror");
+                        sendResponse(exchange, 200, gson.toJson(response));
+                        return;
+                    }
+
                     // 1. Lấy Raw User Info
-                    String rawInfo = cardService.getRawUserInfo();
+                    CardResult<byte[]> rawInfo = cardService.getRawUserInfo();
 
                     // 2. Lấy Raw Image
-                    String rawImage = cardService.readRawImageHexFromCard();
+                    CardResult<byte[]> rawImage = cardService.readRawImage();
 
                     // 3. Trả về JSON
-                    Map<String, String> response = new HashMap<>();
-                    response.put("encryptedUserInfo", rawInfo);
-                    response.put("encryptedImage", rawImage);
+                    response.put("cardId", cardService.getCurrentCardId());
+                    response.put("encryptedUserInfo", hexOrError(rawInfo));
+                    response.put("encryptedImage", hexOrError(rawImage));
+                    response.put("source", "card");
 
                     String jsonRes = gson.toJson(response);
                     sendResponse(exchange, 200, jsonRes);
                 }
             }
+        }));
+
+        // Các đầu đọc đang dùng + giao thức (T=0/T=1) mỗi đầu đọc đã thương lượng
+        route(server, "/readers", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    Map<String, Object> response = new HashMap<>();
+                    response.put("readers", readerPool.describe());
+                    // Đầu đọc khớp luật -Dreaders.match hiện đang cắm, theo thứ tự ưu tiên
+                    List<String> available = new ArrayList<>();
+                    for (CardTerminal t : readerPool.terminals()) available.add(t.getName());
+                    response.put("available", available);
+                    sendResponse(exchange, 200, gson.toJson(response));
+                }
+            }
+        });
+
+        // Bật/tắt ghi JFR lúc đang chạy (event APDU, AES, HTTP + GC/JVM):
+        // POST {"action":"start","settings":"profile","maxAgeSec":600} | {"action":"stop"}, GET xem trạng thái
+        route(server, "/recording", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                try {
+                    if ("GET".equals(exchange.getRequestMethod())) {
+                        sendResponse(exchange, 200, gson.toJson(jfrRecorder.status()));
+                    } else if ("POST".equals(exchange.getRequestMethod())) {
+                        String json = new String(exchange.getRequestBody().readAllBytes());
+                        RecordingRequest req = gson.fromJson(json, RecordingRequest.class);
+                        if (req == null || req.action == null) {
+                            sendResponse(exchange, 400, "Error: action is required (start|stop)");
+                        } else if ("start".equals(req.action)) {
+                            sendResponse(exchange, 200, gson.toJson(jfrRecorder.start(req.settings, req.maxAgeSec)));
+                        } else if ("stop".equals(req.action)) {
+                            Path file = jfrRecorder.stop();
+                            if (file == null) {
+                                sendResponse(exchange, 409, "Error: No recording in progress");
+                            } else {
+                                sendResponse(exchange, 200, gson.toJson(jfrRecorder.status()));
+                            }
+                        } else {
+                            sendResponse(exchange, 400, "Error: Unknown action " + req.action);
+                        }
+                    }
+                } catch (Exception e) {
+                    sendResponse(exchange, 500, "Error: " + e.getMessage());
+                }
+            }
+        });
+
+        // Ghi mọi APDU (lệnh, response, thời gian thẻ xử lý) ra file nhị phân để phát lại offline bằng ApduReplay:
+        // POST {"action":"start"} | {"action":"stop"}, GET xem trạng thái. File nằm cùng thư mục với bản ghi JFR.
+        // Tắt mặc định, chỉ dùng được khi chạy với -Dapdu.recording.enabled=true.
+        route(server, "/apdu-recording", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("OPTIONS".equals(exchange.getRequestMethod())) return;
+                if (!ApduRecorder.isEnabled()) {
+                    sendResponse(exchange, 403, "Error: APDU recording is disabled (start with -Dapdu.recording.enabled=true)");
+                    return;
+                }
+                try {
+                    if ("GET".equals(exchange.getRequestMethod())) {
+                        sendResponse(exchange, 200, gson.toJson(ApduRecorder.status()));
+                    } else if ("POST".equals(exchange.getRequestMethod())) {
+                        String json = new String(exchange.getRequestBody().readAllBytes());
+                        RecordingRequest req = gson.fromJson(json, RecordingRequest.class);
+                        if (req == null || req.action == null) {
+                            sendResponse(exchange, 400, "Error: action is required (start|stop)");
+                        } else if ("start".equals(req.action)) {
+                            Path dir = Paths.get(System.getProperty("jfr.dir", JFR_DIR));
+                            sendResponse(exchange, 200, gson.toJson(ApduRecorder.start(dir)));
+                        } else if ("stop".equals(req.action)) {
+                            Path file = ApduRecorder.stop();
+                            if (file == null) {
+                                sendResponse(exchange, 409, "Error: No recording in progress");
+                            } else {
+                                sendResponse(exchange, 200, gson.toJson(ApduRecorder.status()));
+                            }
+                        } else {
+                            sendResponse(exchange, 400, "Error: Unknown action " + req.action);
+                        }
+                    }
+                } catch (Exception e) {
+                    sendResponse(exchange, 500, "Error: " + e.getMessage());
+                }
+            }
+        });
+
+        // Xuất dữ liệu mã hóa của MỌI thẻ đang cắm, dạng NDJSON (1 dòng JSON / thẻ).
+        // Các đầu đọc được đọc song song; thẻ nào đọc xong thì dòng của thẻ đó được gửi ngay.
+        route(server, "/export-raw", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCORS(exchange);
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    List<CardTerminal> terminals = readerPool.terminals();
+                    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                    exchange.sendResponseHeaders(200, 0); // 0 = chunked, độ dài chưa biết trước
+
+                    // Mỗi đầu đọc 1 tác vụ trên pool dùng chung: xin suất trong hàng đợi của
+                    // chính đầu đọc đó + deadline riêng, đầu đọc chậm/đầy không kéo các đầu đọc khác
+                    CompletionService<Map<String, String>> done = new ExecutorCompletionService<>(exportExecutor);
+                    for (CardTerminal terminal : terminals) {
+                        done.submit(() -> exportReader(terminal));
+                    }
+
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        for (int i = 0; i < terminals.size(); i++) {
+                            Map<String, String> record;
+                            try {
+                                record = done.take().get();
+                            } catch (ExecutionException e) {
+                                record = new LinkedHashMap<>();
+                                record.put("error", String.valueOf(e.getCause().getMessage()));
+                            }
+                            if (record == null) continue; // Đầu đọc không có thẻ
+                            os.write((gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8));
+                            os.flush();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
         });
 
-        server.setExecutor(null);
+        // Nhiều luồng xử lý để lệnh ngắn (verify-pin...) không phải chờ cả request upload ảnh;
+        // thứ tự truy cập thẻ do CardScheduler quyết định.
+        server.setExecutor(Executors.newFixedThreadPool(HTTP_WORKER_THREADS));
         server.start();
-        System.out.println("Java Middleware is running on port " + port);
+        return server;
+    }
+
+    /**
+     * Đăng ký context kèm filter ghi JFR event cho từng request
+     */
+    private static void route(HttpServer server, String path, HttpHandler handler) {
+        server.createContext(path, handler).getFilters().add(HttpExchangeEvent.FILTER);
+    }
+
+    /**
+     * 1 dòng của /export-raw: kết nối (hoặc kiểm tra lại thẻ) rồi đọc bản mã trên 1 đầu đọc,
+     * trong suất hàng đợi + deadline của riêng đầu đọc đó
+     *
+     * @return null nếu đầu đọc không có thẻ
+     */
+    private static Map<String, String> exportReader(CardTerminal terminal) throws CardException {
+        if (!terminal.isCardPresent()) return null;
+        Map<String, String> record = new LinkedHashMap<>();
+        record.put("reader", terminal.getName());
+
+        CardService service = readerPool.serviceFor(terminal);
+        CardScheduler.Admission admission = service.getScheduler().tryAdmit();
+        if (admission == null) {
+            record.put("error", "Card reader busy, retry later");
+            return record;
+        }
+        RequestContext ctx = RequestContext.open("/export-raw",
+                ENDPOINT_DEADLINES_MS.getOrDefault("/export-raw", DEFAULT_DEADLINE_MS));
+        try (admission) {
+            // Có thể khác `service`: CardService chính không giữ đúng thẻ thì dùng CardService riêng của đầu đọc
+            CardService connected = readerPool.connectIfPresent(terminal);
+            if (connected == null) {
+                record.put("error", "Could not connect to card");
+                return record;
+            }
+            record.put("cardId", connected.getCurrentCardId());
+            record.put("encryptedUserInfo", hexOrError(connected.getRawUserInfo()));
+            record.put("encryptedImage", hexOrError(connected.readRawImage()));
+            return record;
+        } finally {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Bọc handler: xin suất trong hàng đợi của đầu đọc (đầy -> 503 + Retry-After)
+     * và gắn deadline của endpoint vào luồng xử lý.
+     * Suất chỉ tính trên scheduler của đầu đọc chính (cardService); /export-raw xin suất
+     * trên từng đầu đọc nó dùng (exportReader), /provision chạy lâu nên không giới hạn,
+     * /points/add chỉ ghi journal nên không cần suất.
+     */
+    private static HttpHandler guarded(String path, HttpHandler handler) {
+        long deadlineMs = ENDPOINT_DEADLINES_MS.getOrDefault(path, DEFAULT_DEADLINE_MS);
+        return exchange -> {
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                handler.handle(exchange);
+                return;
+            }
+
+            CardScheduler.Admission admission = cardService.getScheduler().tryAdmit();
+            if (admission == null) {
+                System.out.println("[WARN] Từ chối " + path + ": hàng đợi đầu đọc đã đầy");
+                handleCORS(exchange);
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                sendResponse(exchange, 503, "Error: Card reader busy, retry later");
+                return;
+            }
+
+            RequestContext ctx = RequestContext.open(path, deadlineMs);
+            try (admission) {
+                handler.handle(exchange);
+            } finally {
+                ctx.close();
+            }
+        };
+    }
+
+    private static boolean hasFlag(String[] args, String flag) {
+        for (String a : args) {
+            if (a.equals(flag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Phân tích header Range 1 đoạn theo byte của ảnh gốc.
+     *
+     * @return {first, last} (last = -1: tới hết), {-1, n} cho n byte cuối; null nếu không có
+     * hoặc không hỗ trợ (nhiều đoạn...) -> trả cả ảnh như cũ
+     */
+    static int[] parseRange(String header) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            if (a.isEmpty()) return b.isEmpty() ? null : new int[]{-1, Integer.parseInt(b)};
+            int first = Integer.parseInt(a);
+            int last = b.isEmpty() ? -1 : Integer.parseInt(b);
+            if (first < 0 || (last >= 0 && last < first)) return null;
+            return new int[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void sendImageRange(HttpExchange exchange, String pin, int[] range) throws IOException {
+        try {
+            CardResult<CardService.ImageRange> result = range[0] < 0
+                    // n byte cuối: phải biết kích thước ảnh nên đọc hết rồi cắt
+                    ? cardService.readImageRange(pin, 0, -1)
+                    : cardService.readImageRange(pin, range[0], range[1]);
+            if (!result.isOk()) {
+                sendError(exchange, 500, result);
+                return;
+            }
+            CardService.ImageRange part = result.getValue();
+            if (range[0] < 0) {
+                int from = Math.max(0, part.data.length - range[1]);
+                part = new CardService.ImageRange(Arrays.copyOfRange(part.data, from, part.data.length), from, part.total);
+            }
+
+            if (part.data.length == 0) {
+                // 416 phải kèm kích thước thật (RFC 9110: "bytes */<số>"). Đoạn nằm hẳn sau dữ liệu
+                // trên thẻ thì chưa biết -> đọc cả ảnh 1 lần để lấy; vẫn không biết thì bỏ Content-Range
+                int total = part.total;
+                if (total < 0) {
+                    CardResult<CardService.ImageRange> whole = cardService.readImageRange(pin, 0, -1);
+                    if (whole.isOk()) total = whole.getValue().total;
+                }
+                if (total >= 0) exchange.getResponseHeaders().set("Content-Range", "bytes */" + total);
+                sendResponse(exchange, 416, "Error: Range Not Satisfiable");
+                return;
+            }
+            String total = part.total < 0 ? "*" : String.valueOf(part.total);
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + part.start + "-" + (part.start + part.data.length - 1) + "/" + total);
+            // 206 = đúng các byte ảnh gốc trong Content-Range (không bọc JSON/Hex, nếu không offset sẽ lệch)
+            sendBytes(exchange, 206, part.data);
+        } catch (Exception e) {
+            sendResponse(exchange, 500, "Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Trả lỗi của CardService về client: tham số sai -> 400, còn lại dùng mã mặc định của endpoint
+     */
+    private static void sendError(HttpExchange exchange, int defaultStatus, CardResult<?> result) throws IOException {
+        int status = result.getStatus() == CardResult.Status.INVALID_INPUT ? 400 : defaultStatus;
+        sendResponse(exchange, status, result.toString());
+    }
+
+    // Dữ liệu thô dạng Hex, hoặc thông điệp lỗi như trước
+    private static String hexOrError(CardResult<byte[]> result) {
+        return result.isOk() ? HexUtils.bytesToHex(result.getValue()) : result.toString();
+    }
+
+    private static RegisterResult toRegisterResult(CardService.Registration reg) {
+        RegisterResult out = new RegisterResult();
+        out.cardId = reg.cardId;
+        out.modulus = HexUtils.bytesToHex(reg.modulus);
+        out.exponent = HexUtils.bytesToHex(reg.exponent);
+        return out;
+    }
+
+    private static void registerPublicKey(CardService.Registration reg) {
+        try {
+            signatureVerifier.registerKey(reg.cardId, reg.modulus, reg.exponent);
+        } catch (Exception e) {
+            System.out.println("[WARN] Không lưu được public key thẻ " + reg.cardId + ": " + e.getMessage());
+        }
+    }
+
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
     }
 
     private static void handleCORS(HttpExchange exchange) throws IOException {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Range");
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "Content-Range, Accept-Ranges");
         if ("OPTIONS".equals(exchange.getRequestMethod())) {
             exchange.sendResponseHeaders(204, -1);
         }
     }
 
+    /**
+     * Trả dữ liệu nhị phân thô (application/octet-stream)
+     */
+    private static void sendBytes(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
     private static void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        // Lỗi do request quá hạn thì báo 504 thay vì 500 chung chung
+        if (statusCode >= 500 && statusCode != 503 && RequestContext.currentTimedOut()) {
+            statusCode = 504;
+        }
+
         String finalJson = response;
         if (!response.trim().startsWith("{")) {
             Map<String, String> map = new HashMap<>();
@@ -0,0 +1,51 @@
+package sondoannam.github.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * 1 lần gửi APDU xuống thẻ (1 lần gọi channel.transmit, kể cả GET RESPONSE tự động).
+ * Thời lượng của event chính là thời gian thẻ + đầu đọc xử lý APDU.
+ */
+@Name("sondoannam.ApduTransmit")
+@Label("APDU Transmit")
+@Category({"Javacard Middleware", "Card"})
+@Description("Một APDU gửi xuống thẻ qua PC/SC")
+public class ApduEvent extends Event {
+    @Label("Reader")
+    public String reader;
+
+    @Label("Logical Channel")
+    public int channel;
+
+    @Label("CLA")
+    public int cla;
+
+    @Label("INS")
+    public int ins;
+
+    @Label("P1")
+    public int p1;
+
+    @Label("P2")
+    public int p2;
+
+    @Label("Lc")
+    @Description("Số byte dữ liệu lệnh")
+    public int lc;
+
+    @Label("Le")
+    @Description("Số byte mong nhận (0 = không có Le)")
+    public int le;
+
+    @Label("SW")
+    @Description("Status word, -1 nếu transmit lỗi")
+    public int sw;
+
+    @Label("Response Length")
+    @Description("Số byte dữ liệu nhận về (không tính SW)")
+    public int responseLength;
+}
@@ -0,0 +1,25 @@
+package sondoannam.github.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * 1 lần mã hóa / giải mã AES dữ liệu ảnh trên middleware
+ */
+@Name("sondoannam.Crypto")
+@Label("AES Operation")
+@Category({"Javacard Middleware", "Crypto"})
+public class CryptoEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Transformation")
+    public String transformation;
+
+    @Label("Input Size")
+    @DataAmount
+    public int inputSize;
+}
@@ -0,0 +1,56 @@
+package sondoannam.github.jfr;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+
+/**
+ * 1 request HTTP xử lý trong Main, từ lúc vào handler tới lúc handler trả về
+ */
+@Name("sondoannam.HttpExchange")
+@Label("HTTP Exchange")
+@Category({"Javacard Middleware", "HTTP"})
+public class HttpExchangeEvent extends Event {
+    @Label("Method")
+    public String method;
+
+    @Label("Path")
+    public String path;
+
+    @Label("Status")
+    @Description("HTTP status, -1 nếu chưa gửi response")
+    public int status;
+
+    /**
+     * Filter gắn vào mọi context của HttpServer để ghi event cho từng request
+     */
+    public static final Filter FILTER = new Filter() {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            HttpExchangeEvent event = new HttpExchangeEvent();
+            event.begin();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.method = exchange.getRequestMethod();
+                    event.path = exchange.getRequestURI().getPath();
+                    event.status = exchange.getResponseCode();
+                    event.commit();
+                }
+            }
+        }
+
+        @Override
+        public String description() {
+            return "JFR HTTP exchange events";
+        }
+    };
+}
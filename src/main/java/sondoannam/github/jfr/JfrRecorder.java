@@ -0,0 +1,88 @@
+package sondoannam.github.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bật/tắt 1 bản ghi JFR lúc đang chạy (qua endpoint /recording).
+ * Khi không ghi, các event của middleware không được commit nên gần như không tốn gì.
+ * Bản ghi dùng cấu hình JFR có sẵn ("default" ~1% overhead, "profile" chi tiết hơn),
+ * nên có luôn event GC / safepoint / lock của JVM bên cạnh event APDU, crypto, HTTP.
+ */
+public class JfrRecorder {
+    private final Path outputDir;
+    private Recording current;
+    private Path lastFile;
+
+    public JfrRecorder(Path outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Bắt đầu ghi (nếu đang ghi thì giữ nguyên bản ghi cũ)
+     *
+     * @param settings  Tên cấu hình JFR: "default" hoặc "profile"
+     * @param maxAgeSec Chỉ giữ dữ liệu trong bấy nhiêu giây gần nhất (0 = không giới hạn)
+     */
+    public synchronized Map<String, Object> start(String settings, long maxAgeSec) throws IOException, ParseException {
+        if (current != null && current.getState() == RecordingState.RUNNING) return status();
+
+        String config = settings == null || settings.isEmpty() ? "default" : settings;
+        Recording recording = new Recording(Configuration.getConfiguration(config));
+        recording.setName("middleware");
+        recording.setToDisk(true);
+        if (maxAgeSec > 0) recording.setMaxAge(Duration.ofSeconds(maxAgeSec));
+        // Event APDU/HTTP/crypto không có ngưỡng thời gian -> ghi hết
+        recording.enable(ApduEvent.class).withoutThreshold();
+        recording.enable(CryptoEvent.class).withoutThreshold();
+        recording.enable(HttpExchangeEvent.class).withoutThreshold();
+        recording.start();
+        current = recording;
+        System.out.println("[INFO] Bắt đầu ghi JFR (cấu hình " + config + ")");
+        return status();
+    }
+
+    /**
+     * Dừng ghi và xuất ra file .jfr
+     *
+     * @return Đường dẫn file, null nếu không có bản ghi nào đang chạy
+     */
+    public synchronized Path stop() throws IOException {
+        if (current == null) return null;
+        Files.createDirectories(outputDir);
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path file = outputDir.resolve("middleware-" + stamp + ".jfr");
+        try {
+            current.stop();
+            current.dump(file);
+        } finally {
+            current.close();
+            current = null;
+        }
+        lastFile = file.toAbsolutePath();
+        System.out.println("[INFO] Đã ghi JFR ra " + lastFile);
+        return lastFile;
+    }
+
+    public synchronized Map<String, Object> status() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        boolean running = current != null && current.getState() == RecordingState.RUNNING;
+        out.put("recording", running);
+        if (running) {
+            out.put("startedAt", String.valueOf(current.getStartTime()));
+        }
+        if (lastFile != null) out.put("lastFile", lastFile.toString());
+        return out;
+    }
+}
@@ -0,0 +1,312 @@
+package sondoannam.github.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ghi lại mọi APDU đi qua ApduTransport (mọi đầu đọc, mọi kênh) ra file nhị phân gọn,
+ * để phát lại offline bằng ReplayCard (tools) và so sánh các phiên bản middleware
+ * trên cùng 1 hành vi thẻ (kể cả độ trễ thật của thẻ).
+ * <p>
+ * Định dạng file (số nguyên không dấu dạng varint LEB128):
+ * <pre>
+ *   Header:   "APDL" | version(1 byte) | thời điểm bắt đầu (epoch ms, 8 byte)
+ *   READER:   0x01 | id | tên đầu đọc (UTF)              -- khai báo 1 lần cho mỗi đầu đọc
+ *   EXCHANGE: 0x02 | id đầu đọc | kênh (1 byte) | bắt đầu (µs từ lúc ghi) | thời gian thẻ xử lý (µs)
+ *             | độ dài lệnh | lệnh | độ dài response | response [DATA][SW1][SW2]
+ * </pre>
+ * Response rỗng = lần truyền đó lỗi ở tầng PC/SC (không có SW).
+ * Khi không ghi, ApduTransport chỉ tốn 1 lần đọc biến volatile mỗi APDU.
+ * <p>
+ * Dữ liệu nhạy cảm không bao giờ xuống đĩa: phần data của lệnh chứa PIN / thông tin gốc
+ * (INS 01, 02, 04, 21, 22) và response chứa thông tin đã giải mã (INS 22, kể cả GET RESPONSE nối tiếp)
+ * được thay bằng 0x00, giữ nguyên độ dài và SW. Khi phát lại, các lệnh này chỉ khớp theo header.
+ * Chỉ bật được khi chạy với -Dapdu.recording.enabled=true.
+ */
+public class ApduRecorder {
+    private static final byte[] MAGIC = {'A', 'P', 'D', 'L'};
+    private static final int VERSION = 1;
+    private static final int TAG_READER = 0x01;
+    private static final int TAG_EXCHANGE = 0x02;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final boolean ENABLED = Boolean.getBoolean("apdu.recording.enabled");
+
+    // INS có data lệnh nhạy cảm: register (PIN), verify PIN, change PIN, set info (bản rõ), get info secure (PIN)
+    private static final int[] SECRET_COMMAND_INS = {0x01, 0x02, 0x04, 0x21, 0x22};
+    // INS có response nhạy cảm: get info secure (thông tin đã giải mã)
+    private static final int[] SECRET_RESPONSE_INS = {0x22};
+    private static final int INS_GET_RESPONSE = 0xC0;
+
+    private static volatile ApduRecorder active;
+    private static Path lastFile;
+
+    /**
+     * 1 lần trao đổi APDU đọc lại từ file
+     */
+    public static class Exchange {
+        public final String reader;
+        public final int channel;
+        // Thời điểm gửi lệnh, tính từ lúc bắt đầu ghi
+        public final long startMicros;
+        // Thời gian channel.transmit (thẻ + đầu đọc + PC/SC)
+        public final long durationMicros;
+        public final byte[] command;
+        // null nếu lần truyền lỗi ở tầng PC/SC
+        public final byte[] response;
+
+        Exchange(String reader, int channel, long startMicros, long durationMicros, byte[] command, byte[] response) {
+            this.reader = reader;
+            this.channel = channel;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.command = command;
+            this.response = response;
+        }
+
+        /**
+         * SW của response, -1 nếu không có
+         */
+        public int sw() {
+            if (response == null || response.length < 2) return -1;
+            return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+        }
+    }
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final long originNanos = System.nanoTime();
+    private final Map<String, Integer> readerIds = new HashMap<>();
+    // INS của lệnh gần nhất (không tính GET RESPONSE) theo "đầu đọc/kênh", để biết GET RESPONSE đang nối tiếp lệnh nào
+    private final Map<String, Integer> lastIns = new HashMap<>();
+    private long exchanges;
+
+    private ApduRecorder(Path file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Bộ ghi đang chạy, null nếu không ghi
+     */
+    public static ApduRecorder active() {
+        return active;
+    }
+
+    /**
+     * Có được phép ghi APDU không (-Dapdu.recording.enabled=true)
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Bắt đầu ghi ra file mới trong thư mục cho trước (đang ghi thì giữ nguyên)
+     *
+     * @throws IllegalStateException nếu chưa bật -Dapdu.recording.enabled=true
+     */
+    public static synchronized Map<String, Object> start(Path outputDir) throws IOException {
+        if (!ENABLED) throw new IllegalStateException("APDU recording is disabled (-Dapdu.recording.enabled=true)");
+        if (active == null) {
+            Files.createDirectories(outputDir);
+            String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            active = new ApduRecorder(outputDir.resolve("apdu-" + stamp + ".apdulog"));
+            System.out.println("[INFO] Bắt đầu ghi APDU ra " + active.file.toAbsolutePath());
+        }
+        return status();
+    }
+
+    /**
+     * Dừng ghi và đóng file
+     *
+     * @return Đường dẫn file, null nếu không có bản ghi nào đang chạy
+     */
+    public static synchronized Path stop() throws IOException {
+        ApduRecorder recorder = active;
+        if (recorder == null) return null;
+        active = null;
+        synchronized (recorder) {
+            recorder.out.close();
+        }
+        lastFile = recorder.file.toAbsolutePath();
+        System.out.println("[INFO] Đã ghi " + recorder.exchanges + " APDU ra " + lastFile);
+        return lastFile;
+    }
+
+    public static synchronized Map<String, Object> status() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        ApduRecorder recorder = active;
+        out.put("recording", recorder != null);
+        if (recorder != null) {
+            synchronized (recorder) {
+                out.put("file", recorder.file.toAbsolutePath().toString());
+                out.put("exchanges", recorder.exchanges);
+                out.put("bytes", recorder.out.size());
+            }
+        }
+        if (lastFile != null) out.put("lastFile", lastFile.toString());
+        return out;
+    }
+
+    /**
+     * Ghi 1 lần trao đổi (gọi từ ApduTransport, có thể từ nhiều đầu đọc cùng lúc)
+     *
+     * @param response null nếu channel.transmit ném lỗi
+     */
+    public synchronized void record(String reader, int channel, byte[] command, byte[] response,
+                                    long startNanos, long endNanos) {
+        if (active != this) return; // Vừa bị dừng giữa chừng
+        try {
+            String name = reader == null ? "" : reader;
+            Integer id = readerIds.get(name);
+            if (id == null) {
+                id = readerIds.size();
+                readerIds.put(name, id);
+                out.writeByte(TAG_READER);
+                writeVarint(out, id);
+                out.writeUTF(name);
+            }
+            int ins = command.length > 1 ? command[1] & 0xFF : -1;
+            String stream = name + "/" + channel;
+            int origin = ins;
+            if (ins == INS_GET_RESPONSE) {
+                origin = lastIns.getOrDefault(stream, -1);
+            } else {
+                lastIns.put(stream, ins);
+            }
+            if (contains(SECRET_COMMAND_INS, ins)) command = redactCommand(command);
+            if (contains(SECRET_RESPONSE_INS, origin)) response = redactResponse(response);
+
+            out.writeByte(TAG_EXCHANGE);
+            writeVarint(out, id);
+            out.writeByte(channel);
+            writeVarint(out, Math.max(0, (startNanos - originNanos) / 1_000));
+            writeVarint(out, Math.max(0, (endNanos - startNanos) / 1_000));
+            writeVarint(out, command.length);
+            out.write(command);
+            int resLen = response == null ? 0 : response.length;
+            writeVarint(out, resLen);
+            if (resLen > 0) out.write(response);
+            exchanges++;
+        } catch (IOException e) {
+            System.out.println("[WARN] Không ghi được APDU, dừng ghi: " + e.getMessage());
+            active = null;
+        }
+    }
+
+    private static boolean contains(int[] list, int ins) {
+        for (int i : list) if (i == ins) return true;
+        return false;
+    }
+
+    /**
+     * Bản sao của lệnh với phần data (theo Lc, APDU ngắn hoặc mở rộng) thay bằng 0x00
+     */
+    static byte[] redactCommand(byte[] command) {
+        if (command.length <= 5) return command; // Không có data
+        byte[] out = command.clone();
+        int lc = command[4] & 0xFF;
+        int from = 5;
+        if (lc == 0 && command.length > 7) {
+            // APDU mở rộng: Lc 3 byte (00 hi lo)
+            lc = ((command[5] & 0xFF) << 8) | (command[6] & 0xFF);
+            from = 7;
+        }
+        Arrays.fill(out, from, Math.min(out.length, from + lc), (byte) 0);
+        return out;
+    }
+
+    /**
+     * Bản sao của response với phần data thay bằng 0x00, giữ SW
+     */
+    static byte[] redactResponse(byte[] response) {
+        if (response == null || response.length <= 2) return response;
+        byte[] out = response.clone();
+        Arrays.fill(out, 0, out.length - 2, (byte) 0);
+        return out;
+    }
+
+    /**
+     * Đọc toàn bộ file ghi. File bị cắt cụt (tiến trình chết khi đang ghi) thì lấy phần đọc được.
+     */
+    public static List<Exchange> read(Path file) throws IOException {
+        List<Exchange> list = new ArrayList<>();
+        Map<Integer, String> readers = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not an APDU log: " + file);
+            int version = in.readUnsignedByte();
+            if (version != VERSION) throw new IOException("Unsupported APDU log version " + version);
+            in.readLong();
+
+            while (true) {
+                int tag = in.read();
+                if (tag < 0) break;
+                try {
+                    if (tag == TAG_READER) {
+                        int id = (int) readVarint(in);
+                        readers.put(id, in.readUTF());
+                    } else if (tag == TAG_EXCHANGE) {
+                        String reader = readers.get((int) readVarint(in));
+                        int channel = in.readUnsignedByte();
+                        long start = readVarint(in);
+                        long duration = readVarint(in);
+                        byte[] command = new byte[(int) readVarint(in)];
+                        in.readFully(command);
+                        int resLen = (int) readVarint(in);
+                        byte[] response = null;
+                        if (resLen > 0) {
+                            response = new byte[resLen];
+                            in.readFully(response);
+                        }
+                        list.add(new Exchange(reader, channel, start, duration, command, response));
+                    } else {
+                        throw new IOException("Corrupt APDU log (tag " + tag + ")");
+                    }
+                } catch (EOFException e) {
+                    System.out.println("[WARN] File ghi APDU bị cắt cụt, bỏ bản ghi cuối.");
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupt varint in APDU log");
+    }
+}
@@ -0,0 +1,235 @@
+package sondoannam.github.services;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import sondoannam.github.jfr.ApduEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Lớp truyền APDU nằm giữa CardService và CardChannel.
+ * - Chọn giao thức khi kết nối: ưu tiên T=1 (block mode, nhanh hơn cho dữ liệu dài),
+ *   không được thì lùi về giao thức dự phòng.
+ * - Tự xử lý 61xx (còn dữ liệu -> GET RESPONSE) và 6Cxx (sai Le -> gửi lại với Le đúng),
+ *   để CardService chỉ thấy response cuối cùng. Với provider SunPCSC mặc định, chính
+ *   CardChannel đã làm việc này (sun.security.smartcardio.t0GetResponse / t1GetResponse mặc định true)
+ *   nên 2 vòng lặp ở đây chỉ chạy khi các thuộc tính đó bị tắt (=false) hoặc với CardChannel
+ *   khác không tự xử lý (thẻ giả lập, thẻ phát lại, provider của hãng khác).
+ * - Đường truyền ít cấp phát cho vòng lặp ảnh: dựng APDU trong buffer dùng lại của phiên,
+ *   nhận response vào buffer dùng lại rồi chép thẳng vào buffer đích, không tạo CommandAPDU/ResponseAPDU
+ *   mỗi chunk. Không phải zero-copy: SunPCSC vẫn chép buffer ra mảng byte[] bên trong transmit(ByteBuffer, ByteBuffer).
+ *   Chỉ gọi trong lượt CardScheduler (độc quyền), nên 2 buffer này không bị dùng chồng.
+ * - Mỗi lần channel.transmit sinh 1 JFR event (ApduEvent), chỉ tốn chi phí khi đang ghi JFR.
+ * - Khi đang ghi APDU (ApduRecorder), mỗi lần channel.transmit được ghi kèm lệnh/response để phát lại offline.
+ */
+public class ApduTransport {
+    private static final int INS_GET_RESPONSE = 0xC0;
+    // Chặn vòng lặp vô hạn nếu đầu đọc/thẻ trả 61xx liên tục
+    private static final int MAX_CHAINED_RESPONSES = 32;
+
+    // Cấu hình qua -Dcard.protocol=T=1 -Dcard.protocol.fallback=*
+    public static final String PREFERRED_PROTOCOL = System.getProperty("card.protocol", "T=1");
+    public static final String FALLBACK_PROTOCOL = System.getProperty("card.protocol.fallback", "*");
+
+    // APDU ngắn: 4 header + Lc + 255 data + Le
+    private static final int MAX_SHORT_COMMAND = 261;
+    // Response có thể dài hơn 258 nếu chính driver PC/SC đã tự nối GET RESPONSE
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+
+    private final CardChannel channel;
+    // Tên đầu đọc, chỉ để ghi vào JFR event
+    private final String reader;
+    private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(MAX_SHORT_COMMAND);
+    private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(RESPONSE_BUFFER_SIZE);
+
+    public ApduTransport(CardChannel channel) {
+        this(channel, null);
+    }
+
+    public ApduTransport(CardChannel channel, String reader) {
+        this.channel = channel;
+        this.reader = reader;
+    }
+
+    public CardChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Kết nối thẻ với giao thức ưu tiên, lùi về giao thức dự phòng nếu đầu đọc/thẻ không hỗ trợ
+     */
+    public static Card connect(CardTerminal terminal) throws CardException {
+        try {
+            return terminal.connect(PREFERRED_PROTOCOL);
+        } catch (CardException e) {
+            if (FALLBACK_PROTOCOL.equals(PREFERRED_PROTOCOL)) throw e;
+            System.out.println("[WARN] " + terminal.getName() + " không nhận " + PREFERRED_PROTOCOL
+                    + " (" + e.getMessage() + "), thử " + FALLBACK_PROTOCOL);
+            return terminal.connect(FALLBACK_PROTOCOL);
+        }
+    }
+
+    /**
+     * Gửi APDU, tự nối GET RESPONSE và sửa Le khi cần
+     */
+    public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+        ResponseAPDU res = send(cmd);
+
+        // 6Cxx: Le sai, thẻ báo số byte thật -> gửi lại đúng lệnh với Le = xx
+        if (res.getSW1() == 0x6C) {
+            int le = res.getSW2() == 0 ? 256 : res.getSW2();
+            res = send(withNe(cmd, le));
+        }
+
+        if (res.getSW1() != 0x61) return res;
+
+        // 61xx: còn xx byte -> GET RESPONSE cho tới khi hết, ghép dữ liệu lại
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int rounds = 0;
+        while (res.getSW1() == 0x61) {
+            if (++rounds > MAX_CHAINED_RESPONSES) throw new CardException("Too many GET RESPONSE rounds");
+            byte[] part = res.getData();
+            data.write(part, 0, part.length);
+            int le = res.getSW2() == 0 ? 256 : res.getSW2();
+            res = send(new CommandAPDU(getResponseCla(cmd.getCLA()), INS_GET_RESPONSE, 0x00, 0x00, le));
+        }
+        byte[] last = res.getData();
+        data.write(last, 0, last.length);
+        data.write(res.getSW1());
+        data.write(res.getSW2());
+        return new ResponseAPDU(data.toByteArray());
+    }
+
+    /**
+     * Gửi APDU ngắn từ các buffer có sẵn, không tạo CommandAPDU/ResponseAPDU.
+     *
+     * @param data Dữ liệu lệnh từ position tới limit (null nếu không có); position không đổi sau lệnh
+     * @param ne   Số byte mong nhận (0 = không có Le, 256 = Le 0x00)
+     * @param dest Nơi ghi dữ liệu response (null = bỏ qua); position tiến thêm đúng số byte nhận được
+     * @return SW cuối cùng (đã xử lý 6Cxx / 61xx)
+     */
+    public int transmit(int cla, int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer dest) throws CardException {
+        int sw = exchange(cla, ins, p1, p2, data, ne, dest);
+
+        if ((sw >> 8) == 0x6C) {
+            sw = exchange(cla, ins, p1, p2, data, (sw & 0xFF) == 0 ? 256 : sw & 0xFF, dest);
+        }
+
+        int rounds = 0;
+        while ((sw >> 8) == 0x61) {
+            if (++rounds > MAX_CHAINED_RESPONSES) throw new CardException("Too many GET RESPONSE rounds");
+            sw = exchange(getResponseCla(cla), INS_GET_RESPONSE, 0x00, 0x00, null, (sw & 0xFF) == 0 ? 256 : sw & 0xFF, dest);
+        }
+        return sw;
+    }
+
+    /**
+     * CLA cho GET RESPONSE (lệnh liên ngành), giữ số kênh theo đúng cách lệnh gốc mã hoá nó:
+     * - CLA độc quyền (bit 8 = 1, vd. A0): không mang số kênh, lệnh gốc đi trên kênh cơ bản -> 00
+     * - liên ngành tiếp theo (01xx xxxx): kênh 4..19 ở 4 bit thấp -> 0100 xxxx
+     * - liên ngành đầu tiên (000x xxxx): kênh 0..3 ở 2 bit thấp, bỏ bit secure messaging -> 0000 00xx
+     */
+    static int getResponseCla(int cla) {
+        if ((cla & 0x80) != 0) return 0x00;
+        if ((cla & 0x40) != 0) return 0x40 | (cla & 0x0F);
+        return cla & 0x03;
+    }
+
+    private int exchange(int cla, int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer dest) throws CardException {
+        commandBuffer.clear();
+        commandBuffer.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+        if (data != null && data.hasRemaining()) {
+            int start = data.position();
+            commandBuffer.put((byte) data.remaining());
+            commandBuffer.put(data);
+            data.position(start);
+        }
+        if (ne > 0) commandBuffer.put((byte) (ne == 256 ? 0 : ne));
+        commandBuffer.flip();
+
+        responseBuffer.clear();
+        int lc = data != null ? data.remaining() : 0;
+        ApduRecorder recorder = ApduRecorder.active();
+        long t0 = recorder != null ? System.nanoTime() : 0;
+        ApduEvent event = new ApduEvent();
+        event.begin();
+        int n = -1;
+        try {
+            n = channel.transmit(commandBuffer, responseBuffer);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                int sw = n >= 2 ? ((responseBuffer.get(n - 2) & 0xFF) << 8) | (responseBuffer.get(n - 1) & 0xFF) : -1;
+                commit(event, cla, ins, p1, p2, lc, ne, sw, Math.max(0, n - 2));
+            }
+            if (recorder != null) {
+                recorder.record(reader, channel.getChannelNumber(), copyOf(commandBuffer, commandBuffer.limit()),
+                        n >= 0 ? copyOf(responseBuffer, n) : null, t0, System.nanoTime());
+            }
+        }
+        if (n < 2) throw new CardException("Response too short (" + n + " bytes)");
+        int sw = ((responseBuffer.get(n - 2) & 0xFF) << 8) | (responseBuffer.get(n - 1) & 0xFF);
+
+        if (dest != null && n > 2) {
+            if (dest.remaining() < n - 2) throw new CardException("Response larger than destination buffer");
+            responseBuffer.position(0).limit(n - 2);
+            dest.put(responseBuffer);
+        }
+        return sw;
+    }
+
+    private ResponseAPDU send(CommandAPDU cmd) throws CardException {
+        ApduRecorder recorder = ApduRecorder.active();
+        long t0 = recorder != null ? System.nanoTime() : 0;
+        ApduEvent event = new ApduEvent();
+        event.begin();
+        ResponseAPDU res = null;
+        try {
+            res = channel.transmit(cmd);
+            return res;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                commit(event, cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), cmd.getNc(), cmd.getNe(),
+                        res == null ? -1 : res.getSW(), res == null ? 0 : res.getNr());
+            }
+            if (recorder != null) {
+                recorder.record(reader, channel.getChannelNumber(), cmd.getBytes(),
+                        res == null ? null : res.getBytes(), t0, System.nanoTime());
+            }
+        }
+    }
+
+    // Chép n byte đầu của buffer (đọc tuyệt đối, không đổi position/limit)
+    private static byte[] copyOf(ByteBuffer buffer, int n) {
+        byte[] out = new byte[n];
+        buffer.get(0, out);
+        return out;
+    }
+
+    private void commit(ApduEvent event, int cla, int ins, int p1, int p2, int lc, int le, int sw, int responseLength) {
+        event.reader = reader;
+        event.channel = channel.getChannelNumber();
+        event.cla = cla;
+        event.ins = ins;
+        event.p1 = p1;
+        event.p2 = p2;
+        event.lc = lc;
+        event.le = le;
+        event.sw = sw;
+        event.responseLength = responseLength;
+        event.commit();
+    }
+
+    private static CommandAPDU withNe(CommandAPDU cmd, int ne) {
+        byte[] body = cmd.getData();
+        return body.length > 0
+                ? new CommandAPDU(cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), body, ne)
+                : new CommandAPDU(cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), ne);
+    }
+}
@@ -0,0 +1,306 @@
+package sondoannam.github.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bản sao cục bộ (append-only, memory-mapped) của dữ liệu ĐÃ MÃ HÓA trên thẻ,
+ * đánh chỉ mục theo cardId. Dùng để trả /get-raw-data mà không cần gửi APDU.
+ * <p>
+ * Định dạng mỗi record: [MAGIC(1)] [KIND(1)] [ID_LEN(1)] [CARD_ID] [DATA_LEN(4)] [DATA]
+ * DATA_LEN = -1 là tombstone (dữ liệu trên thẻ đã đổi mà ta không biết bản mã mới).
+ * Record mới ghi đè record cũ cùng (cardId, kind); record cũ được dọn khi compact.
+ * Ghi lại đúng bản mã đang có thì bỏ qua (đọc thẻ nhiều lần không làm file phình ra).
+ * <p>
+ * Đây là cache dựng lại được từ thẻ nên không fsync từng record: tắt máy đột ngột chỉ mất
+ * vài record cuối, phần đuôi cụt bị bỏ khi mở lại.
+ * Vùng map chỉ được map lại khi phần ghi thêm sau nó đủ lớn (REMAP_THRESHOLD); record nằm
+ * ngoài vùng map được đọc thẳng từ file. Vùng map cũ để GC giải phóng, nên trên Windows
+ * lần compact có thể thất bại (file còn bị map) và được thử lại ở chu kỳ sau.
+ */
+public class CardMirrorStore implements AutoCloseable {
+
+    public enum Kind {
+        USER_INFO, IMAGE
+    }
+
+    private static final byte RECORD_MAGIC = (byte) 0xCD;
+    private static final int TOMBSTONE = -1;
+    private static final long COMPACT_INTERVAL_MINUTES = 5;
+    // Map lại khi phần file nằm ngoài vùng map vượt ngưỡng này
+    private static final long REMAP_THRESHOLD = 1024 * 1024;
+
+    private static class Entry {
+        final long dataOffset;
+        final int length;
+        // Cả record (header + data), dùng để tính phần còn sống của file
+        final int recordLength;
+
+        Entry(long dataOffset, int length, int recordLength) {
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private final Path path;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+
+    private FileChannel file;
+    private MappedByteBuffer mapped;
+    private long mappedSize;
+    private long fileSize;
+    private long liveBytes;
+
+    public CardMirrorStore(Path path) throws IOException {
+        this.path = path;
+        openAndLoad();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "card-mirror-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACT_INTERVAL_MINUTES, COMPACT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private static String key(String cardId, Kind kind) {
+        return cardId + "/" + kind.name();
+    }
+
+    private static int headerLength(int idLen) {
+        return 3 + idLen + 4;
+    }
+
+    /**
+     * Lưu bản mã mới nhất của thẻ (gọi sau mỗi lần đọc/ghi thẻ thành công).
+     * Giống hệt bản đang lưu thì không ghi gì.
+     */
+    public void put(String cardId, Kind kind, byte[] data) {
+        if (cardId == null || cardId.isEmpty()) return;
+        if (Arrays.equals(data, get(cardId, kind))) return;
+        append(cardId, kind, data);
+    }
+
+    /**
+     * Đánh dấu dữ liệu cục bộ không còn đúng với thẻ
+     */
+    public void invalidate(String cardId, Kind kind) {
+        if (index.containsKey(key(cardId, kind))) {
+            append(cardId, kind, null);
+        }
+    }
+
+    /**
+     * Đọc bản mã (từ vùng nhớ map, hoặc từ file nếu record mới hơn vùng map), null nếu chưa có
+     */
+    public byte[] get(String cardId, Kind kind) {
+        lock.readLock().lock();
+        try {
+            Entry e = index.get(key(cardId, kind));
+            return e == null ? null : readData(e);
+        } catch (IOException e) {
+            System.out.println("[WARN] Không đọc được card mirror: " + e.getMessage());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Gọi khi đang giữ lock
+    private byte[] readData(Entry e) throws IOException {
+        byte[] out = new byte[e.length];
+        if (mapped != null && e.dataOffset + e.length <= mappedSize) {
+            mapped.get((int) e.dataOffset, out);
+        } else if (!readFully(ByteBuffer.wrap(out), e.dataOffset)) {
+            throw new IOException("Card mirror record past end of file");
+        }
+        return out;
+    }
+
+    public boolean contains(String cardId, Kind kind) {
+        return index.containsKey(key(cardId, kind));
+    }
+
+    private void append(String cardId, Kind kind, byte[] data) {
+        if (cardId == null || cardId.isEmpty()) return;
+        byte[] idBytes = cardId.getBytes(StandardCharsets.US_ASCII);
+        int dataLen = data == null ? TOMBSTONE : data.length;
+
+        ByteBuffer record = ByteBuffer.allocate(headerLength(idBytes.length) + Math.max(dataLen, 0));
+        record.put(RECORD_MAGIC).put((byte) kind.ordinal()).put((byte) idBytes.length).put(idBytes);
+        record.putInt(dataLen);
+        if (data != null) record.put(data);
+        record.flip();
+
+        lock.writeLock().lock();
+        try {
+            long recordStart = fileSize;
+            while (record.hasRemaining()) {
+                file.write(record, fileSize + record.position());
+            }
+            fileSize = recordStart + record.limit();
+
+            Entry old = data == null
+                    ? index.remove(key(cardId, kind))
+                    : index.put(key(cardId, kind), new Entry(fileSize - dataLen, dataLen, record.limit()));
+            if (old != null) liveBytes -= old.recordLength;
+            if (data != null) liveBytes += record.limit();
+
+            if (fileSize - mappedSize >= REMAP_THRESHOLD) remap();
+        } catch (IOException e) {
+            System.out.println("[WARN] Không ghi được card mirror: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Gọi khi đang giữ write lock; vùng map cũ được GC giải phóng khi không còn ai giữ
+    private void remap() throws IOException {
+        mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        mappedSize = fileSize;
+    }
+
+    private void unmap() {
+        mapped = null;
+        mappedSize = 0;
+    }
+
+    private void openAndLoad() throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileSize = file.size();
+        index.clear();
+        liveBytes = 0;
+
+        // Quét bằng read() trước, chỉ map sau khi đã truncate phần đuôi hỏng
+        long pos = 0;
+        Kind[] kinds = Kind.values();
+        ByteBuffer fixed = ByteBuffer.allocate(3);
+        ByteBuffer rest = ByteBuffer.allocate(255 + 4);
+        while (pos < fileSize) {
+            // Record cuối bị cụt (tắt máy giữa chừng) -> bỏ phần đuôi
+            if (fileSize - pos < 3 || !readFully(fixed.clear(), pos) || fixed.get(0) != RECORD_MAGIC) break;
+            int kindIdx = fixed.get(1);
+            int idLen = fixed.get(2) & 0xFF;
+            if (kindIdx < 0 || kindIdx >= kinds.length || fileSize - pos < headerLength(idLen)) break;
+            if (!readFully(rest.clear().limit(idLen + 4), pos + 3)) break;
+
+            byte[] idBytes = new byte[idLen];
+            rest.get(0, idBytes);
+            int dataLen = rest.getInt(idLen);
+            long dataOffset = pos + headerLength(idLen);
+            if (dataLen != TOMBSTONE && (dataLen < 0 || fileSize - dataOffset < dataLen)) break;
+
+            int recordLength = headerLength(idLen) + Math.max(dataLen, 0);
+            String k = key(new String(idBytes, StandardCharsets.US_ASCII), kinds[kindIdx]);
+            Entry old = dataLen == TOMBSTONE
+                    ? index.remove(k)
+                    : index.put(k, new Entry(dataOffset, dataLen, recordLength));
+            if (old != null) liveBytes -= old.recordLength;
+            if (dataLen != TOMBSTONE) liveBytes += recordLength;
+
+            pos += recordLength;
+        }
+
+        if (pos < fileSize) {
+            System.out.println("[WARN] Card mirror bị cụt ở byte " + pos + ", bỏ phần đuôi.");
+            file.truncate(pos);
+            fileSize = pos;
+        }
+        remap();
+        System.out.println("[INFO] Card mirror: " + index.size() + " bản ghi (" + fileSize + " bytes)");
+    }
+
+    private boolean readFully(ByteBuffer dst, long position) throws IOException {
+        long at = position;
+        while (dst.hasRemaining()) {
+            int n = file.read(dst, at);
+            if (n < 0) return false;
+            at += n;
+        }
+        return true;
+    }
+
+    /**
+     * Viết lại file chỉ với các record còn sống khi phần rác đủ lớn
+     */
+    void compactIfNeeded() {
+        lock.writeLock().lock();
+        try {
+            // Chỉ compact khi phần rác (record bị ghi đè + tombstone) chiếm quá nửa file
+            if (fileSize - liveBytes <= liveBytes) return;
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<String, Entry> e : index.entrySet()) {
+                    int slash = e.getKey().lastIndexOf('/');
+                    byte[] idBytes = e.getKey().substring(0, slash).getBytes(StandardCharsets.US_ASCII);
+                    Kind kind = Kind.valueOf(e.getKey().substring(slash + 1));
+                    Entry entry = e.getValue();
+
+                    ByteBuffer header = ByteBuffer.allocate(3 + idBytes.length + 4);
+                    header.put(RECORD_MAGIC).put((byte) kind.ordinal()).put((byte) idBytes.length).put(idBytes);
+                    header.putInt(entry.length).flip();
+                    while (header.hasRemaining()) out.write(header);
+
+                    ByteBuffer data = ByteBuffer.wrap(readData(entry));
+                    while (data.hasRemaining()) out.write(data);
+                }
+                out.force(true);
+            }
+
+            long before = fileSize;
+            unmap();
+            file.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openAndLoad();
+            System.out.println("[INFO] Đã compact card mirror: " + before + " -> " + fileSize + " bytes");
+        } catch (IOException e) {
+            System.out.println("[WARN] Compact card mirror thất bại: " + e.getMessage());
+            try {
+                Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".compact"));
+            } catch (IOException ignored) {
+            }
+            if (!file.isOpen()) {
+                try {
+                    openAndLoad();
+                } catch (IOException reopen) {
+                    System.out.println("[ERROR] Không mở lại được card mirror: " + reopen.getMessage());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            unmap();
+            file.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
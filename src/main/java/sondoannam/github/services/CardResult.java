@@ -0,0 +1,135 @@
+package sondoannam.github.services;
+
+/**
+ * Kết quả có kiểu của 1 thao tác với thẻ: hoặc giá trị (byte[], ImageRange...), hoặc lỗi có cấu trúc
+ * (loại lỗi + thông điệp + SW nếu do thẻ từ chối).
+ * Thay cho quy ước trả chuỗi "Error: ..." mà mọi caller phải kiểm tra bằng startsWith;
+ * chuỗi đó giờ chỉ còn được dựng ở tầng HTTP qua {@link #toString()}.
+ */
+public final class CardResult<T> {
+    public enum Status {
+        OK,
+        // Chưa kết nối thẻ
+        NOT_CONNECTED,
+        // Tham số sai: Hex hỏng, dữ liệu quá dài...
+        INVALID_INPUT,
+        // 6982: chưa verify PIN
+        SECURITY,
+        // 6D00: Applet chưa có lệnh này
+        NOT_SUPPORTED,
+        // Thẻ trả SW lỗi khác
+        CARD_ERROR,
+        // Lỗi PC/SC, giải mã...
+        FAILED
+    }
+
+    public static final int NO_SW = -1;
+
+    private final Status status;
+    private final T value;
+    private final String message;
+    private final int sw;
+    // Chuỗi trả cho client khi khác dạng "Error: " + message (giữ nguyên văn bản cũ của API)
+    private final String text;
+
+    private CardResult(Status status, T value, String message, int sw) {
+        this(status, value, message, sw, null);
+    }
+
+    private CardResult(Status status, T value, String message, int sw, String text) {
+        this.status = status;
+        this.value = value;
+        this.message = message;
+        this.sw = sw;
+        this.text = text;
+    }
+
+    public static <T> CardResult<T> ok(T value) {
+        return new CardResult<>(Status.OK, value, null, 0x9000);
+    }
+
+    public static <T> CardResult<T> notConnected() {
+        return notConnected("Card not connected");
+    }
+
+    public static <T> CardResult<T> notConnected(String message) {
+        return new CardResult<>(Status.NOT_CONNECTED, null, message, NO_SW);
+    }
+
+    public static <T> CardResult<T> invalid(String message) {
+        return new CardResult<>(Status.INVALID_INPUT, null, message, NO_SW);
+    }
+
+    /**
+     * Thẻ trả SW khác 9000; loại lỗi suy ra từ SW.
+     * message được dùng nguyên văn (caller tự thêm "SW=..." nếu thông điệp cũ có)
+     */
+    public static <T> CardResult<T> sw(int sw, String message) {
+        Status status = sw == 0x6982 ? Status.SECURITY
+                : sw == 0x6D00 ? Status.NOT_SUPPORTED
+                : Status.CARD_ERROR;
+        return new CardResult<>(status, null, message, sw);
+    }
+
+    public static <T> CardResult<T> failed(String message) {
+        return new CardResult<>(Status.FAILED, null, message, NO_SW);
+    }
+
+    public static <T> CardResult<T> failed(Exception e) {
+        return failed(e.getMessage());
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    /**
+     * Giá trị khi thành công
+     *
+     * @throws IllegalStateException nếu là kết quả lỗi
+     */
+    public T getValue() {
+        if (!isOk()) throw new IllegalStateException("No value: " + message);
+        return value;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * SW thẻ trả về, {@link #NO_SW} nếu lỗi không đến từ thẻ
+     */
+    public int getSw() {
+        return sw;
+    }
+
+    /**
+     * Cùng kết quả lỗi nhưng trả cho client đúng chuỗi text (không thêm tiền tố "Error: ")
+     */
+    public CardResult<T> withText(String text) {
+        return new CardResult<>(status, value, message, sw, text);
+    }
+
+    /**
+     * Chuyển 1 kết quả lỗi sang kiểu khác để trả tiếp lên trên
+     */
+    @SuppressWarnings("unchecked")
+    public <U> CardResult<U> propagate() {
+        if (isOk()) throw new IllegalStateException("Cannot propagate a successful result");
+        return (CardResult<U>) this;
+    }
+
+    /**
+     * "Success" hoặc "Error: ..." như định dạng cũ của API HTTP
+     */
+    @Override
+    public String toString() {
+        if (isOk()) return "Success";
+        return text != null ? text : "Error: " + message;
+    }
+}
@@ -0,0 +1,194 @@
+package sondoannam.github.services;
+
+import javax.smartcardio.CardException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bộ lập lịch lệnh cho 1 thẻ (1 đầu đọc).
+ * Mỗi lần gọi execute() chiếm thẻ độc quyền trong thời gian ngắn (thường là 1 APDU).
+ * Khi thẻ bận, các lệnh chờ được xếp hàng theo độ ưu tiên rồi theo thứ tự đến,
+ * nên vòng lặp ghi/đọc ảnh dài sẽ "nhường" thẻ giữa các chunk cho lệnh INTERACTIVE.
+ * Lệnh chờ lâu được "lên hạng" (aging): cứ mỗi -Dcard.scheduler.agingMs (mặc định 500ms) chờ
+ * thì tăng 1 bậc ưu tiên, nên tải INTERACTIVE liên tục không bỏ đói được BULK / BACKGROUND.
+ * <p>
+ * Số request được nhận vào cùng lúc bị giới hạn (tryAdmit). Lệnh chờ quá deadline của
+ * RequestContext bị huỷ trước khi chạy, nên vòng lặp nhiều chunk cũng dừng giữa 2 APDU.
+ */
+public class CardScheduler {
+
+    public enum Priority {
+        INTERACTIVE, // Lệnh người dùng đang chờ: verify PIN, card-id, ký challenge...
+        BULK,        // Truyền dữ liệu dài: ghi/đọc ảnh theo chunk
+        BACKGROUND   // Việc nền: đồng bộ, làm mới cache...
+    }
+
+    /**
+     * Suất đã được nhận vào hàng đợi, trả lại bằng close()
+     */
+    public interface Admission extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    @FunctionalInterface
+    public interface CardCall<T> {
+        T call() throws CardException;
+    }
+
+    private static class Ticket {
+        final Priority priority;
+        final long seq;
+        final long enqueuedNanos;
+        final Condition turn;
+        boolean granted;
+
+        Ticket(Priority priority, long seq, long enqueuedNanos, Condition turn) {
+            this.priority = priority;
+            this.seq = seq;
+            this.enqueuedNanos = enqueuedNanos;
+            this.turn = turn;
+        }
+
+        // Bậc ưu tiên sau khi cộng thời gian chờ (càng nhỏ càng được chạy trước, có thể âm)
+        long rank(long now, long agingNanos) {
+            return priority.ordinal() - (now - enqueuedNanos) / agingNanos;
+        }
+    }
+
+    private static final long AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(1, Long.getLong("card.scheduler.agingMs", 500)));
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Hàng đợi chỉ vài chục phần tử (giới hạn bởi maxPending) -> quét tuyến tính khi trao lượt
+    private final List<Ticket> waiting = new ArrayList<>();
+    private boolean busy = false;
+    private long nextSeq = 0;
+
+    public static final int DEFAULT_MAX_PENDING = 16;
+
+    private final int maxPending;
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    public CardScheduler() {
+        this(DEFAULT_MAX_PENDING);
+    }
+
+    public CardScheduler(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Xin 1 suất xử lý request trên đầu đọc này.
+     *
+     * @return Admission (nhớ close), hoặc null nếu hàng đợi đã đầy -> nên trả 503
+     */
+    public Admission tryAdmit() {
+        if (admitted.incrementAndGet() > maxPending) {
+            admitted.decrementAndGet();
+            return null;
+        }
+        return admitted::decrementAndGet;
+    }
+
+    /**
+     * Chạy 1 lời gọi xuống thẻ khi tới lượt.
+     * Lời gọi không được gọi lồng execute() (không reentrant).
+     */
+    public <T> T execute(Priority priority, CardCall<T> call) throws CardException {
+        acquire(priority);
+        try {
+            return call.call();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire(Priority priority) throws CardException {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.checkpoint();
+
+        lock.lock();
+        try {
+            if (!busy && waiting.isEmpty()) {
+                busy = true;
+                return;
+            }
+
+            Ticket ticket = new Ticket(priority, nextSeq++, System.nanoTime(), lock.newCondition());
+            waiting.add(ticket);
+            try {
+                while (!ticket.granted) {
+                    if (ctx == null) {
+                        ticket.turn.await();
+                        continue;
+                    }
+                    long remaining = ctx.remainingNanos();
+                    if (remaining <= 0) {
+                        // Chưa tới lượt mà đã quá hạn -> huỷ, không bao giờ gửi APDU này
+                        waiting.remove(ticket);
+                        throw new CardException("Deadline exceeded (" + ctx.getName() + ")");
+                    }
+                    ticket.turn.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    // Đã được cấp lượt đúng lúc bị ngắt -> trả lượt cho người kế tiếp
+                    handOver();
+                } else {
+                    waiting.remove(ticket);
+                }
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted while waiting for card");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            handOver();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gọi khi đang giữ lock: chuyển thẻ cho ticket ưu tiên cao nhất (đã tính aging), hoặc đánh dấu rảnh
+    private void handOver() {
+        Ticket next = null;
+        long now = System.nanoTime();
+        long bestRank = 0;
+        for (Ticket t : waiting) {
+            long rank = t.rank(now, AGING_NANOS);
+            if (next == null || rank < bestRank || (rank == bestRank && t.seq < next.seq)) {
+                next = t;
+                bestRank = rank;
+            }
+        }
+        if (next != null) {
+            waiting.remove(next);
+            next.granted = true;
+            next.turn.signal();
+        } else {
+            busy = false;
+        }
+    }
+
+    /**
+     * Số lệnh đang xếp hàng chờ thẻ (không tính lệnh đang chạy)
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
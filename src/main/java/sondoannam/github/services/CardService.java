@@ -1,15 +1,19 @@
 package sondoannam.github.services;
 
+import sondoannam.github.jfr.CryptoEvent;
+import sondoannam.github.services.CardScheduler.Priority;
 import sondoannam.github.utils.HexUtils;
 
 import javax.smartcardio.*;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -18,10 +22,31 @@ import java.util.Arrays;
 
 public class CardService {
     private Card card;
-    private CardChannel channel;
+    private volatile CardChannel channel;
+    // Lớp truyền: GET RESPONSE / sửa Le tự động
+    private volatile ApduTransport transport;
+
+    // Mọi APDU đều đi qua scheduler để lệnh ngắn có thể chen giữa các chunk ảnh
+    private final CardScheduler scheduler = new CardScheduler();
+    // Chỉ 1 lượt ghi ảnh tại 1 thời điểm; đọc ảnh không bị xen bởi lượt ghi (tránh ảnh bị rách)
+    private final ReadWriteLock imageLock = new ReentrantReadWriteLock();
+
+    // Bản sao cục bộ dữ liệu mã hóa (có thể null nếu không bật)
+    private CardMirrorStore mirror;
+    // CardID (8 byte hex) của thẻ đang kết nối, đọc 1 lần lúc connect
+    private volatile String currentCardId;
+    // Tên đầu đọc đang dùng
+    private volatile String terminalName;
+    // Kênh logic cho thao tác chỉ đọc, tạo lại mỗi lần gắn thẻ mới.
+    // Applet dùng CLA độc quyền A0 -> pool luôn tắt, xem LogicalChannelPool
+    private volatile LogicalChannelPool channelPool;
+    // Số kênh logic tối đa mỗi thẻ (-Dcard.logicalChannels=0 để chỉ dùng kênh cơ bản)
+    private static final int MAX_LOGICAL_CHANNELS = Integer.getInteger("card.logicalChannels", 3);
 
     // AID chuẩn (10 bytes)
     private static final byte[] APPLET_AID = HexUtils.hexToBytes("A00000006203010A0100");
+    // CLA của mọi lệnh Applet (độc quyền, không mang số kênh logic)
+    private static final int APPLET_CLA = 0xA0;
     // Kích thước tối đa của dữ liệu trong 1 lệnh APDU (Max 255, ta chọn 240)
     private static final int MAX_APDU_DATA_SIZE = 240;
     // Lệnh ghi ảnh (INS_WRITE_IMAGE)
@@ -60,28 +85,57 @@ public class CardService {
         }
     }
 
+    /**
+     * Kết quả đăng ký thẻ: CardID + public key RSA (modulus/exponent dạng byte, big-endian không dấu)
+     */
+    public static class Registration {
+        public final String cardId;
+        public final byte[] modulus;
+        public final byte[] exponent;
+
+        public Registration(String cardId, byte[] modulus, byte[] exponent) {
+            this.cardId = cardId;
+            this.modulus = modulus;
+            this.exponent = exponent;
+        }
+    }
+
+    /**
+     * 1 đoạn ảnh đã giải mã (kết quả đọc theo HTTP Range)
+     */
+    public static class ImageRange {
+        public final byte[] data;
+        // Vị trí byte đầu tiên của data trong ảnh gốc
+        public final int start;
+        // Kích thước ảnh gốc, -1 nếu đoạn đọc chưa chạm tới cuối ảnh nên chưa biết
+        public final int total;
+
+        public ImageRange(byte[] data, int start, int total) {
+            this.data = data;
+            this.start = start;
+            this.total = total;
+        }
+    }
+
     public boolean connect() {
         try {
-            TerminalFactory factory = TerminalFactory.getDefault();
-            List<CardTerminal> terminals = factory.terminals().list();
-
-            System.out.println("[INFO] Tìm thấy " + terminals.size() + " đầu đọc.");
-
-            for (CardTerminal t : terminals) {
-                // Chỉ ưu tiên đầu đọc ảo của JCIDE
-                if (t.getName().contains("JAVACOS") || t.getName().contains("Virtual")) {
-                    try {
-                        if (t.isCardPresent()) {
-                            System.out.println("[INFO] Kết nối vào: " + t.getName());
-                            card = t.connect("*");
-                            channel = card.getBasicChannel();
-
-                            // Tự động Select Applet khi kết nối
-                            return selectApplet();
-                        }
-                    } catch (Exception e) {
-                        System.out.println("[WARN] Không thể kết nối đầu đọc này: " + e.getMessage());
+            return scheduler.execute(Priority.INTERACTIVE, this::connectInternal);
+        } catch (CardException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean connectInternal() {
+        try {
+            // Danh sách lấy từ cache của registry, đã sắp theo ưu tiên
+            for (CardTerminal t : TerminalRegistry.shared().candidates()) {
+                try {
+                    if (t.isCardPresent()) {
+                        return connectTerminalInternal(t);
                     }
+                } catch (Exception e) {
+                    System.out.println("[WARN] Không thể kết nối đầu đọc này: " + e.getMessage());
                 }
             }
         } catch (Exception e) {
@@ -90,11 +144,89 @@ public class CardService {
         return false;
     }
 
+    /**
+     * Kết nối vào 1 đầu đọc cụ thể (dùng khi chạy nhiều đầu đọc song song)
+     */
+    public boolean connect(CardTerminal terminal) {
+        try {
+            return scheduler.execute(Priority.INTERACTIVE, () -> connectTerminalInternal(terminal));
+        } catch (CardException e) {
+            System.out.println("[WARN] Không thể kết nối " + terminal.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean connectTerminalInternal(CardTerminal terminal) throws CardException {
+        System.out.println("[INFO] Kết nối vào: " + terminal.getName());
+        Card newCard = ApduTransport.connect(terminal);
+        if (!TerminalRegistry.shared().acceptsCard(terminal.getName(), newCard.getATR())) {
+            newCard.disconnect(false);
+            throw new CardException("Card ATR " + HexUtils.bytesToHex(newCard.getATR().getBytes()) + " not accepted by reader rules");
+        }
+        terminalName = terminal.getName();
+        return attachInternal(newCard);
+    }
+
+    public String getTerminalName() {
+        return terminalName;
+    }
+
+    /**
+     * Giao thức đã thương lượng với thẻ ("T=0"/"T=1"), null nếu chưa kết nối
+     */
+    public String getProtocol() {
+        Card c = card;
+        return c == null ? null : c.getProtocol();
+    }
+
+    /**
+     * Gắn 1 Card đã kết nối sẵn (vd. thẻ giả lập cho load test) thay vì dò đầu đọc PC/SC
+     */
+    public boolean attach(Card newCard) {
+        try {
+            return scheduler.execute(Priority.INTERACTIVE, () -> attachInternal(newCard));
+        } catch (CardException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean attachInternal(Card newCard) {
+        // Thẻ cũ (vd. vừa bị rút ra thay thẻ khác) -> nhả kết nối
+        if (card != null && card != newCard) {
+            try {
+                card.disconnect(false);
+            } catch (Exception ignored) {
+            }
+        }
+        if (channelPool != null) channelPool.close();
+        card = newCard;
+        currentCardId = null;
+        channel = newCard.getBasicChannel();
+        transport = new ApduTransport(channel, terminalName);
+        channelPool = new LogicalChannelPool(newCard, terminalName, APPLET_AID, APPLET_CLA, MAX_LOGICAL_CHANNELS);
+        System.out.println("[INFO] Giao thức: " + newCard.getProtocol());
+
+        // Tự động Select Applet khi kết nối
+        if (!selectAppletInternal()) return false;
+        currentCardId = readCardIdInternal();
+        return true;
+    }
+
     public boolean selectApplet() {
+        try {
+            return scheduler.execute(Priority.INTERACTIVE, this::selectAppletInternal);
+        } catch (CardException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean selectAppletInternal() {
         if (channel == null) return false;
         try {
             CommandAPDU selectCmd = new CommandAPDU(0x00, 0xA4, 0x04, 0x00, APPLET_AID);
-            ResponseAPDU res = channel.transmit(selectCmd);
+            ResponseAPDU res = transport.transmit(selectCmd);
             System.out.println("[INFO] Select Applet SW: " + Integer.toHexString(res.getSW()));
             return res.getSW() == 0x9000;
         } catch (CardException e) {
@@ -103,28 +235,149 @@ public class CardService {
         }
     }
 
-    public String sendAPDU(String hexAPDU) {
-        if (channel == null) return "Error: No Connection";
+    // Đọc CardID ngay trong lượt scheduler hiện tại (dùng lúc connect)
+    private String readCardIdInternal() {
         try {
-            byte[] cmdBytes = HexUtils.hexToBytes(hexAPDU);
-            CommandAPDU cmd = new CommandAPDU(cmdBytes);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transport.transmit(new CommandAPDU(0xA0, INS_GET_CARD_ID, 0x00, 0x00, 9));
+            if (res.getSW() == 0x9000 && res.getData().length >= 8) {
+                return HexUtils.bytesToHex(Arrays.copyOf(res.getData(), 8));
+            }
+        } catch (CardException e) {
+            System.out.println("[WARN] Không đọc được CardID: " + e.getMessage());
+        }
+        return null;
+    }
 
-            // Trả về: Data (nếu có) + SW (2 bytes cuối)
-            byte[] data = res.getData();
-            int sw = res.getSW();
+    public String getCurrentCardId() {
+        return currentCardId;
+    }
 
-            String dataHex = HexUtils.bytesToHex(data);
-            String swHex = String.format("%04X", sw);
+    /**
+     * Thẻ đang giữ có còn đúng là thẻ đã đọc CardID lúc connect không
+     * (thẻ bị rút/thay thì handle cũ lỗi hoặc CardID khác -> false)
+     */
+    public boolean isSameCardPresent() {
+        String expected = currentCardId;
+        if (expected == null || transport == null) return false;
+        try {
+            return scheduler.execute(Priority.INTERACTIVE, () -> expected.equals(readCardIdInternal()));
+        } catch (CardException e) {
+            return false;
+        }
+    }
 
-            return dataHex + swHex;
-        } catch (Exception e) {
-            return "Error: " + e.getMessage();
+    public void setMirror(CardMirrorStore mirror) {
+        this.mirror = mirror;
+    }
+
+    public CardMirrorStore getMirror() {
+        return mirror;
+    }
+
+    private void mirrorPut(CardMirrorStore.Kind kind, byte[] data) {
+        mirrorPut(currentCardId, kind, data);
+    }
+
+    // Ghi mirror cho thẻ đã chốt lúc bắt đầu thao tác (thẻ hiện tại có thể đã bị đổi)
+    private void mirrorPut(String cardId, CardMirrorStore.Kind kind, byte[] data) {
+        if (mirror != null && cardId != null) mirror.put(cardId, kind, data);
+    }
+
+    private void mirrorInvalidate(CardMirrorStore.Kind kind) {
+        mirrorInvalidate(currentCardId, kind);
+    }
+
+    private void mirrorInvalidate(String cardId, CardMirrorStore.Kind kind) {
+        if (mirror != null && cardId != null) mirror.invalidate(cardId, kind);
+    }
+
+    /**
+     * Gửi 1 APDU thô xuống thẻ
+     *
+     * @return Response đầy đủ: [DATA][SW1][SW2]
+     */
+    public CardResult<byte[]> transmitApdu(byte[] command) {
+        if (channel == null) return CardResult.notConnected("No Connection");
+        CommandAPDU cmd;
+        try {
+            cmd = new CommandAPDU(command);
+        } catch (IllegalArgumentException e) {
+            return CardResult.invalid(e.getMessage());
+        }
+        try {
+            return CardResult.ok(transmit(Priority.INTERACTIVE, cmd).getBytes());
+        } catch (CardException e) {
+            return CardResult.failed(e);
         }
     }
 
+    /**
+     * Gửi 1 APDU xuống thẻ qua scheduler (chờ tới lượt theo độ ưu tiên)
+     */
+    private ResponseAPDU transmit(Priority priority, CommandAPDU cmd) throws CardException {
+        return transmit(priority, null, cmd);
+    }
+
+    /**
+     * Như transmit() nhưng gửi trên kênh logic via (null = kênh cơ bản)
+     */
+    private ResponseAPDU transmit(Priority priority, ApduTransport via, CommandAPDU cmd) throws CardException {
+        return scheduler.execute(priority, () -> {
+            ApduTransport tr = via != null ? via : transport;
+            if (tr == null) throw new CardException("Card not connected");
+            return tr.transmit(cmd);
+        });
+    }
+
+    /**
+     * Bản ByteBuffer của transmit() cho vòng lặp chunk ảnh: dữ liệu lấy từ data (position..limit),
+     * response ghi thẳng vào dest.
+     *
+     * @param session Transport của thẻ lúc bắt đầu vòng lặp. Mỗi chunk là 1 lượt scheduler riêng,
+     *                nên /connect hoặc đổi thẻ có thể chen vào giữa 2 chunk -> dừng hẳn,
+     *                không ghi/đọc tiếp phần còn lại trên thẻ khác.
+     * @param via     Kênh logic (null = kênh cơ bản của session)
+     * @return SW
+     */
+    private int transmit(Priority priority, ApduTransport session, ApduTransport via,
+                         int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer dest) throws CardException {
+        return scheduler.execute(priority, () -> {
+            if (transport != session) throw new CardException("Card changed during transfer");
+            ApduTransport tr = via != null ? via : session;
+            return tr.transmit(APPLET_CLA, ins, p1, p2, data, ne, dest);
+        });
+    }
+
+    /**
+     * Mượn 1 kênh logic cho thao tác chỉ đọc; null -> dùng kênh cơ bản
+     * (pool tắt vì CLA độc quyền, thẻ không hỗ trợ, hết kênh, hoặc chưa kết nối).
+     * Kênh riêng chỉ tách trạng thái phiên Applet, không làm lệnh chạy song song: APDU vẫn qua scheduler.
+     */
+    private ApduTransport acquireReadChannel(Priority priority) {
+        LogicalChannelPool pool = channelPool;
+        if (pool == null) return null;
+        ApduTransport tr = pool.poll();
+        if (tr != null || !pool.canOpen()) return tr;
+        try {
+            // Mở kênh + SELECT là lệnh xuống thẻ -> cũng phải chờ lượt
+            return scheduler.execute(priority, pool::open);
+        } catch (CardException e) {
+            return null;
+        }
+    }
+
+    private void releaseReadChannel(ApduTransport tr) {
+        LogicalChannelPool pool = channelPool;
+        if (tr != null && pool != null) pool.release(tr);
+    }
+
+    public CardScheduler getScheduler() {
+        return scheduler;
+    }
+
     public void disconnect() {
         try {
+            if (channelPool != null) channelPool.close();
             if (card != null) card.disconnect(false);
             System.out.println("[INFO] Đã ngắt kết nối thẻ.");
         } catch (Exception e) {
@@ -134,9 +387,9 @@ public class CardService {
 
     // --- ĐĂNG KÝ THẺ (REGISTER) ---
     // Input: PIN
-    // Output: JSON String { "cardId": "...", "publicKey": "..." }
-    public String registerCard(String pin) {
-        if (channel == null) return "Error: Card not connected";
+    // Output: CardID + public key RSA của thẻ
+    public CardResult<Registration> registerCard(String pin) {
+        if (channel == null) return CardResult.notConnected();
         try {
             byte[] pinBytes = pin.getBytes();
             int pinLen = pinBytes.length;
@@ -148,39 +401,30 @@ public class CardService {
 
             // Gửi lệnh
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_REGISTER, 0x00, 0x00, payload);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
-            if (res.getSW() == 0x9000) {
-                byte[] data = res.getData();
-                // Parse dữ liệu trả về: [CardID(8)] [LenMod(2)] [Modulus] [LenExp(2)] [Exponent]
-
-                // 1. Lấy CardID
-                byte[] idBytes = new byte[8];
-                System.arraycopy(data, 0, idBytes, 0, 8);
-                String cardId = HexUtils.bytesToHex(idBytes);
-
-                // 2. Lấy Modulus
-                int modLenIdx = 8;
-                int modLen = ((data[modLenIdx] & 0xFF) << 8) | (data[modLenIdx + 1] & 0xFF);
-                byte[] modBytes = new byte[modLen];
-                System.arraycopy(data, modLenIdx + 2, modBytes, 0, modLen);
-                String modulus = HexUtils.bytesToHex(modBytes);
-
-                // 3. Lấy Exponent
-                int expLenIdx = modLenIdx + 2 + modLen;
-                int expLen = ((data[expLenIdx] & 0xFF) << 8) | (data[expLenIdx + 1] & 0xFF);
-                byte[] expBytes = new byte[expLen];
-                System.arraycopy(data, expLenIdx + 2, expBytes, 0, expLen);
-                String exponent = HexUtils.bytesToHex(expBytes);
-
-                // Trả về JSON
-                return String.format("{\"cardId\":\"%s\", \"modulus\":\"%s\", \"exponent\":\"%s\"}",
-                        cardId, modulus, exponent);
-            } else {
-                return "Error: SW=" + Integer.toHexString(res.getSW());
-            }
+            if (res.getSW() != 0x9000) return CardResult.sw(res.getSW(), "SW=" + Integer.toHexString(res.getSW()));
+
+            byte[] data = res.getData();
+            // Parse dữ liệu trả về: [CardID(8)] [LenMod(2)] [Modulus] [LenExp(2)] [Exponent]
+
+            // 1. Lấy CardID
+            String cardId = HexUtils.bytesToHex(Arrays.copyOfRange(data, 0, 8));
+
+            // 2. Lấy Modulus
+            int modLenIdx = 8;
+            int modLen = ((data[modLenIdx] & 0xFF) << 8) | (data[modLenIdx + 1] & 0xFF);
+            byte[] modulus = Arrays.copyOfRange(data, modLenIdx + 2, modLenIdx + 2 + modLen);
+
+            // 3. Lấy Exponent
+            int expLenIdx = modLenIdx + 2 + modLen;
+            int expLen = ((data[expLenIdx] & 0xFF) << 8) | (data[expLenIdx + 1] & 0xFF);
+            byte[] exponent = Arrays.copyOfRange(data, expLenIdx + 2, expLenIdx + 2 + expLen);
+
+            currentCardId = cardId;
+            return CardResult.ok(new Registration(cardId, modulus, exponent));
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
         }
     }
 
@@ -191,7 +435,7 @@ public class CardService {
         try {
             byte[] pinBytes = pin.getBytes();
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_VERIFY_PIN, 0x00, 0x00, pinBytes);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             int sw = res.getSW();
 
@@ -220,64 +464,60 @@ public class CardService {
     }
 
     // --- LẤY CARD ID (PUBLIC) ---
-    public String getCardId() {
-        if (channel == null) return "Error: Card not connected";
+    // CardID dạng Hex, thêm hậu tố ".BLOCKED" nếu thẻ đã bị khóa
+    public CardResult<String> getCardId() {
+        if (channel == null) return CardResult.notConnected();
+        ApduTransport via = acquireReadChannel(Priority.INTERACTIVE);
         try {
             // Le = 9 (8 ID + 1 Status)
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_GET_CARD_ID, 0x00, 0x00, 9);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, via, cmd);
 
-            if (res.getSW() == 0x9000) {
-                byte[] data = res.getData();
-                if (data.length < 9) return "Error: Invalid Response Length";
+            if (res.getSW() != 0x9000) return CardResult.sw(res.getSW(), "SW=" + Integer.toHexString(res.getSW()));
+            byte[] data = res.getData();
+            if (data.length < 9) return CardResult.failed("Invalid Response Length");
 
-                // 8 Byte đầu là ID
-                byte[] idBytes = new byte[8];
-                System.arraycopy(data, 0, idBytes, 0, 8);
-                String cardId = HexUtils.bytesToHex(idBytes);
+            // 8 Byte đầu là ID
+            String cardId = HexUtils.bytesToHex(Arrays.copyOf(data, 8));
 
-                // Byte cuối là Status
-                byte status = data[8];
+            // Byte cuối là Status
+            byte status = data[8];
 
-                if (status == 0x01) {
-                    return cardId + ".BLOCKED"; // Chiều theo ý huynh!
-                } else {
-                    return cardId;
-                }
+            if (status == 0x01) {
+                return CardResult.ok(cardId + ".BLOCKED"); // Chiều theo ý huynh!
+            } else {
+                return CardResult.ok(cardId);
             }
-            return "Error: SW=" + Integer.toHexString(res.getSW());
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
+        } finally {
+            releaseReadChannel(via);
         }
     }
 
     /**
      * Gửi Challenge xuống thẻ để ký
      *
-     * @param challengeHex Chuỗi ngẫu nhiên (Hex) từ Server
-     * @return Chữ ký (Signature Hex) hoặc Lỗi
+     * @param challenge Chuỗi ngẫu nhiên từ Server
+     * @return Chữ ký
      */
-    public String signChallenge(String challengeHex) {
-        if (channel == null) return "Error: Card not connected";
+    public CardResult<byte[]> signChallenge(byte[] challenge) {
+        if (channel == null) return CardResult.notConnected();
 
         try {
-            byte[] challengeBytes = HexUtils.hexToBytes(challengeHex);
-
             // Lệnh SIGN: CLA=A0, INS=33, P1=0, P2=0, Data=Challenge
-            CommandAPDU cmd = new CommandAPDU(0xA0, INS_SIGN_CHALLENGE, 0x00, 0x00, challengeBytes);
-            ResponseAPDU res = channel.transmit(cmd);
+            CommandAPDU cmd = new CommandAPDU(0xA0, INS_SIGN_CHALLENGE, 0x00, 0x00, challenge);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() == 0x9000) {
-                // Trả về chữ ký (Hex)
-                return HexUtils.bytesToHex(res.getData());
+                return CardResult.ok(res.getData());
             } else if (res.getSW() == 0x6982) { // SW_SECURITY_STATUS_NOT_SATISFIED
-                return "Error: PIN Required"; // Chưa nhập PIN mà đòi ký
+                return CardResult.sw(res.getSW(), "PIN Required"); // Chưa nhập PIN mà đòi ký
             } else {
-                return "Error: Sign Failed SW=" + Integer.toHexString(res.getSW());
+                return CardResult.sw(res.getSW(), "Sign Failed SW=" + Integer.toHexString(res.getSW()));
             }
-
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
         }
     }
 
@@ -291,58 +531,118 @@ public class CardService {
 
     // Mã hóa dữ liệu ảnh
     private byte[] encryptAES(byte[] data, String pin) throws Exception {
-        byte[] key = generateKeyFromPin(pin);
-        SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding"); // Java dùng PKCS5Padding tương đương thẻ
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return cipher.doFinal(data);
+        CryptoEvent event = new CryptoEvent();
+        event.begin();
+        try {
+            byte[] key = generateKeyFromPin(pin);
+            SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
+            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding"); // Java dùng PKCS5Padding tương đương thẻ
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            return cipher.doFinal(data);
+        } finally {
+            commitCrypto(event, "encrypt", "AES/ECB/PKCS5Padding", data.length);
+        }
     }
 
     // Giải mã dữ liệu ảnh
-    private byte[] decryptAES(byte[] encryptedData, String pin) throws Exception {
-        byte[] key = generateKeyFromPin(pin);
-        SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
-        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        return cipher.doFinal(encryptedData);
+    private byte[] decryptAES(byte[] encryptedData, int length, String pin) throws Exception {
+        CryptoEvent event = new CryptoEvent();
+        event.begin();
+        try {
+            byte[] key = generateKeyFromPin(pin);
+            SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
+            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+            return cipher.doFinal(encryptedData, 0, length);
+        } finally {
+            commitCrypto(event, "decrypt", "AES/ECB/PKCS5Padding", length);
+        }
+    }
+
+    // Giải mã từng block AES/ECB độc lập, không xử lý padding (dùng cho đọc 1 đoạn ảnh)
+    private byte[] decryptBlocks(byte[] encryptedData, int length, String pin) throws Exception {
+        CryptoEvent event = new CryptoEvent();
+        event.begin();
+        try {
+            byte[] key = generateKeyFromPin(pin);
+            SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+            return cipher.doFinal(encryptedData, 0, length);
+        } finally {
+            commitCrypto(event, "decrypt", "AES/ECB/NoPadding", length);
+        }
+    }
+
+    // Ghi JFR event cho 1 lần mã hóa/giải mã (không ghi JFR thì shouldCommit() = false, gần như miễn phí)
+    private static void commitCrypto(CryptoEvent event, String operation, String transformation, int inputSize) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.transformation = transformation;
+            event.inputSize = inputSize;
+            event.commit();
+        }
     }
 
     /**
-     * Hàm nhận chuỗi Hex ảnh, cắt nhỏ và ghi log ra file
+     * Mã hóa ảnh bằng khóa sinh từ PIN rồi ghi xuống thẻ
      *
-     * @param hexImage Chuỗi Hex dài của ảnh (4096 bytes ~ 8192 ký tự hex)
-     * @return Thông báo kết quả
+     * @param image Ảnh gốc (tối đa ~4KB)
+     * @return Số byte đã ghi (bản mã)
      */
-    public String uploadImageToCard(String hexImage, String pin) {
-        if (channel == null) return "Error: Card not connected";
-
-        byte[] originalBytes;
-        try {
-            originalBytes = HexUtils.hexToBytes(hexImage);
-        } catch (IllegalArgumentException e) {
-            return "Error: Invalid Hex String";
-        }
+    public CardResult<Integer> uploadImage(byte[] image, String pin) {
+        if (channel == null) return CardResult.notConnected();
 
+        byte[] encryptedBytes;
         try {
             // --- BƯỚC MỚI: MÃ HÓA DỮ LIỆU ---
             System.out.println("[INFO] Đang mã hóa ảnh với PIN...");
-            byte[] encryptedBytes = encryptAES(originalBytes, pin);
+            encryptedBytes = encryptAES(image, pin);
+        } catch (Exception e) {
+            e.printStackTrace();
+            CardResult<Integer> failed = CardResult.failed("Encrypting failed: " + e.getMessage());
+            return failed.withText("Error encrypting/uploading: " + e.getMessage());
+        }
 
-            // Log so sánh kích thước
-            System.out.println("   > Original size: " + originalBytes.length + " bytes");
-            System.out.println("   > Encrypted size: " + encryptedBytes.length + " bytes");
+        // Log so sánh kích thước
+        System.out.println("   > Original size: " + image.length + " bytes");
+        System.out.println("   > Encrypted size: " + encryptedBytes.length + " bytes");
 
+        return uploadEncryptedImage(encryptedBytes);
+    }
+
+    /**
+     * Mã hóa ảnh bằng khóa sinh từ PIN (tách riêng để pipeline có thể mã hóa trước khi có thẻ)
+     */
+    public byte[] encryptImage(byte[] originalBytes, String pin) throws Exception {
+        return encryptAES(originalBytes, pin);
+    }
+
+    /**
+     * Ghi ảnh ĐÃ MÃ HÓA xuống thẻ theo từng chunk
+     */
+    public CardResult<Integer> uploadEncryptedImage(byte[] encryptedBytes) {
+        // Chốt thẻ lúc bắt đầu: mọi chunk phải đi xuống đúng thẻ này
+        ApduTransport session = transport;
+        String cardId = currentCardId;
+        if (channel == null || session == null) return CardResult.notConnected();
+
+        try {
             // Kiểm tra kích thước sau khi mã hóa
             // (Không được cắt cụt dữ liệu encrypted vì sẽ hỏng file)
             if (encryptedBytes.length > APPLET_MAX_IMAGE_SIZE) {
-                return "Error: Image too large after encryption (" + encryptedBytes.length + " > " + APPLET_MAX_IMAGE_SIZE + ")";
+                return CardResult.invalid("Image too large after encryption (" + encryptedBytes.length + " > " + APPLET_MAX_IMAGE_SIZE + ")");
             }
 
             // Dùng dữ liệu ĐÃ MÃ HÓA để gửi xuống thẻ
             byte[] dataToSend = encryptedBytes;
             int totalBytes = dataToSend.length;
+            // 1 view duy nhất trên mảng nguồn, mỗi chunk chỉ dời position/limit (không chép ra mảng con)
+            ByteBuffer source = ByteBuffer.wrap(dataToSend);
 
             String logFileName = "debug_image_chunks.txt";
+            imageLock.writeLock().lock();
             try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(logFileName, true)))) {
                 String timeStamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
                 writer.println("\n=== REAL UPLOAD (ENCRYPTED) - " + timeStamp + " ===");
@@ -350,11 +650,14 @@ public class CardService {
                 int offset = 0;
                 int chunkIndex = 0;
 
+                // Từ chunk đầu tiên ảnh trên thẻ đã khác bản cũ trong mirror;
+                // upload lỗi giữa chừng thì mirror không còn bản nào (không trả ảnh cũ cho /get-raw-data)
+                mirrorInvalidate(cardId, CardMirrorStore.Kind.IMAGE);
+
                 while (offset < totalBytes) {
                     // 1. Cắt gói (Chunking)
                     int len = Math.min(MAX_APDU_DATA_SIZE, totalBytes - offset);
-                    byte[] chunkData = new byte[len];
-                    System.arraycopy(dataToSend, offset, chunkData, 0, len);
+                    source.limit(offset + len).position(offset);
 
                     // 2. Tính P1, P2
                     int p1 = (offset >> 8) & 0xFF;
@@ -364,85 +667,199 @@ public class CardService {
                     writer.printf("Packet #%d (Offset %d): Len=%d\n", chunkIndex, offset, len);
 
                     // 4. GỬI LỆNH
-                    CommandAPDU cmd = new CommandAPDU(0xA0, INS_WRITE_IMAGE_INT, p1, p2, chunkData);
-                    ResponseAPDU res = channel.transmit(cmd);
+                    // Mỗi chunk là 1 lượt scheduler riêng -> lệnh INTERACTIVE có thể chen vào giữa.
+                    // An toàn vì Applet ghi theo offset P1/P2, không phụ thuộc chunk trước.
+                    int sw = transmit(Priority.BULK, session, null, INS_WRITE_IMAGE_INT, p1, p2, source, 0, null);
 
                     // 5. Kiểm tra phản hồi
-                    if (res.getSW() != 0x9000) {
-                        String errorMsg = "Upload Failed at offset " + offset + " SW=" + Integer.toHexString(res.getSW());
-                        writer.println(">> ERROR: " + errorMsg);
-                        return errorMsg;
+                    if (sw != 0x9000) {
+                        String errorMsg = "Upload Failed at offset " + offset + " SW=" + Integer.toHexString(sw);
+                        // API cũ trả thông điệp này không có tiền tố "Error: "
+                        CardResult<Integer> failed = CardResult.<Integer>sw(sw, errorMsg).withText(errorMsg);
+                        writer.println(">> ERROR: " + failed.getMessage());
+                        return failed;
                     }
 
                     offset += len;
                     chunkIndex++;
                 }
                 writer.println("=== UPLOAD COMPLETE ===");
+            } finally {
+                imageLock.writeLock().unlock();
             }
 
-            return "Success: Encrypted image uploaded (" + totalBytes + " bytes)";
+            mirrorPut(cardId, CardMirrorStore.Kind.IMAGE, dataToSend);
+            return CardResult.ok(totalBytes);
 
         } catch (Exception e) {
             e.printStackTrace();
-            return "Error encrypting/uploading: " + e.getMessage();
+            CardResult<Integer> failed = CardResult.failed("Uploading failed: " + e.getMessage());
+            return failed.withText("Error encrypting/uploading: " + e.getMessage());
         }
     }
 
-    public String readRawImageHexFromCard() {
-        if (channel == null) return "Error: Card not connected";
+    /**
+     * Đọc bản mã ảnh trên thẻ (chưa giải mã)
+     */
+    public CardResult<byte[]> readRawImage() {
+        ApduTransport session = transport;
+        String cardId = currentCardId;
+        CardResult<ByteBuffer> raw = readRawImageBuffer(session);
+        if (!raw.isOk()) return raw.propagate();
+        ByteBuffer buf = raw.getValue();
+        // Chép 1 lần để cắt đúng số byte đọc được (buffer cấp sẵn APPLET_MAX_IMAGE_SIZE);
+        // mirror và nơi gọi dùng chung mảng này (mirror chỉ ghi ra file, không giữ mảng)
+        byte[] encryptedBytes = Arrays.copyOf(buf.array(), buf.limit());
+        mirrorPut(cardId, CardMirrorStore.Kind.IMAGE, encryptedBytes);
+        return CardResult.ok(encryptedBytes);
+    }
 
-        StringBuilder encryptedHexBuilder = new StringBuilder();
-        int offset = 0;
+    /**
+     * Đọc bản mã ảnh vào 1 buffer (position 0, limit = số byte đọc được)
+     *
+     * @param session Transport của thẻ lúc bắt đầu đọc, thẻ bị đổi giữa chừng -> lỗi (không ghép dữ liệu 2 thẻ)
+     */
+    private CardResult<ByteBuffer> readRawImageBuffer(ApduTransport session) {
+        if (channel == null || session == null) return CardResult.notConnected();
+
+        // Response của từng chunk được ghi nối thẳng vào buffer đích, không tạo mảng trung gian
+        ByteBuffer encrypted = ByteBuffer.allocate(APPLET_MAX_IMAGE_SIZE);
         int chunkSize = 240;
 
+        ApduTransport via = acquireReadChannel(Priority.BULK);
+        imageLock.readLock().lock();
         try {
-            while (offset < APPLET_MAX_IMAGE_SIZE) {
+            while (encrypted.hasRemaining()) {
+                int offset = encrypted.position();
                 int p1 = (offset >> 8) & 0xFF;
                 int p2 = offset & 0xFF;
 
-                CommandAPDU cmd = new CommandAPDU(0xA0, INS_READ_IMAGE_INT, p1, p2, chunkSize);
-                ResponseAPDU res = channel.transmit(cmd);
+                int sw = transmit(Priority.BULK, session, via, INS_READ_IMAGE_INT, p1, p2, null,
+                        Math.min(chunkSize, encrypted.remaining()), encrypted);
 
-                if (res.getSW() == 0x9000) {
-                    byte[] data = res.getData();
-                    if (data.length == 0) break;
-                    encryptedHexBuilder.append(HexUtils.bytesToHex(data));
-                    offset += data.length;
-                    if (data.length < chunkSize) break;
-                } else if (res.getSW() == 0x6700) {
+                if (sw == 0x9000) {
+                    int read = encrypted.position() - offset;
+                    if (read < chunkSize) break;
+                } else if (sw == 0x6700) {
+                    encrypted.position(offset);
                     break;
                 } else {
-                    return "Error: Read Failed SW=" + Integer.toHexString(res.getSW());
+                    return CardResult.sw(sw, "Read Failed SW=" + Integer.toHexString(sw));
                 }
             }
-            return encryptedHexBuilder.toString();
+            encrypted.flip();
+            return CardResult.ok(encrypted);
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
+        } finally {
+            imageLock.readLock().unlock();
+            releaseReadChannel(via);
         }
     }
 
     /**
-     * Đọc ảnh từ thẻ (Ghép chunk)
+     * Đọc ảnh từ thẻ (Ghép chunk) rồi giải mã thẳng từ buffer đọc được
      *
-     * @return Chuỗi Hex dài chứa toàn bộ dữ liệu ảnh
+     * @return Ảnh gốc (rỗng nếu thẻ chưa có ảnh)
      */
-    public String readImageFromCard(String pin) {
-        String encryptedHex = readRawImageHexFromCard();
-        if (encryptedHex.startsWith("Error")) return encryptedHex;
-        if (encryptedHex.isEmpty()) return "";
+    public CardResult<byte[]> readImage(String pin) {
+        CardResult<ByteBuffer> raw = readRawImageBuffer(transport);
+        if (!raw.isOk()) return raw.propagate();
+        ByteBuffer encrypted = raw.getValue();
+        if (!encrypted.hasRemaining()) return CardResult.ok(new byte[0]);
 
         try {
-            byte[] encryptedBytes = HexUtils.hexToBytes(encryptedHex);
-            byte[] decryptedBytes = decryptAES(encryptedBytes, pin);
-            return HexUtils.bytesToHex(decryptedBytes);
+            return CardResult.ok(decryptAES(encrypted.array(), encrypted.limit(), pin));
         } catch (Exception e) {
-            return "Error: Decryption failed - " + e.getMessage();
+            return CardResult.failed("Decryption failed - " + e.getMessage());
         }
     }
 
-    private int getPointsInternal() throws CardException {
+    /**
+     * Đọc + giải mã 1 đoạn [first, last] của ảnh gốc (last = -1: tới hết ảnh).
+     * AES/ECB giải mã từng block 16 byte độc lập và INS 0x11 đọc theo offset, nên chỉ cần
+     * gửi các APDU phủ những block chứa đoạn này rồi giải mã đúng các block đó.
+     * Xin thêm 1 block sau vùng cần: không nhận được thì block cuối vùng chính là block cuối ảnh
+     * -> bỏ padding PKCS5. Block dò thường nằm gọn trong Le của chunk cuối; chỉ khi vùng cần
+     * vừa khít bội số MAX_APDU_DATA_SIZE thì nó rơi sang chunk mới và tốn thêm 1 lệnh READ.
+     * Lưu ý: đoạn không chạm cuối ảnh thì không có padding để kiểm tra, sai PIN sẽ ra dữ liệu rác.
+     */
+    public CardResult<ImageRange> readImageRange(String pin, int first, int last) {
+        ApduTransport session = transport;
+        if (channel == null || session == null) return CardResult.notConnected();
+
+        int blockStart = first / AES_BLOCK_SIZE * AES_BLOCK_SIZE;
+        int blockEnd = last < 0 ? APPLET_MAX_IMAGE_SIZE
+                : Math.min(APPLET_MAX_IMAGE_SIZE, (last / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE);
+        int wantEnd = Math.min(APPLET_MAX_IMAGE_SIZE, blockEnd + AES_BLOCK_SIZE);
+        if (blockStart >= wantEnd) return CardResult.ok(new ImageRange(new byte[0], first, -1));
+
+        ByteBuffer encrypted = ByteBuffer.allocate(wantEnd - blockStart);
+        boolean reachedEnd = false;
+
+        ApduTransport via = acquireReadChannel(Priority.BULK);
+        imageLock.readLock().lock();
+        try {
+            while (encrypted.hasRemaining()) {
+                int before = encrypted.position();
+                int offset = blockStart + before;
+                int want = Math.min(MAX_APDU_DATA_SIZE, encrypted.remaining());
+
+                int sw = transmit(Priority.BULK, session, via, INS_READ_IMAGE_INT, (offset >> 8) & 0xFF, offset & 0xFF, null, want, encrypted);
+                if (sw == 0x6700) {
+                    encrypted.position(before);
+                    reachedEnd = true;
+                    break;
+                }
+                if (sw != 0x9000) return CardResult.sw(sw, "Read Failed SW=" + Integer.toHexString(sw));
+                if (encrypted.position() - before < want) {
+                    reachedEnd = true;
+                    break;
+                }
+            }
+        } catch (CardException e) {
+            return CardResult.failed(e);
+        } finally {
+            imageLock.readLock().unlock();
+            releaseReadChannel(via);
+        }
+        if (wantEnd == APPLET_MAX_IMAGE_SIZE) reachedEnd = true;
+
+        int received = encrypted.position();
+        if (received % AES_BLOCK_SIZE != 0) return CardResult.failed("Encrypted image length is not a multiple of 16");
+
+        // Chỉ giải mã các block trong vùng cần, bỏ block dò thêm
+        int needed = Math.min(received, blockEnd - blockStart);
+        if (needed == 0) return CardResult.ok(new ImageRange(new byte[0], first, -1));
+        byte[] plain;
+        try {
+            plain = decryptBlocks(encrypted.array(), needed, pin);
+        } catch (Exception e) {
+            return CardResult.failed("Decryption failed - " + e.getMessage());
+        }
+
+        int plainLen = needed;
+        int total = -1;
+        if (reachedEnd && received <= blockEnd - blockStart) {
+            int pad = plain[needed - 1] & 0xFF;
+            boolean valid = pad >= 1 && pad <= AES_BLOCK_SIZE;
+            for (int i = needed - pad; valid && i < needed; i++) {
+                valid = (plain[i] & 0xFF) == pad;
+            }
+            if (!valid) return CardResult.failed("Decryption failed - bad padding (wrong PIN?)");
+            plainLen -= pad;
+            total = blockStart + plainLen;
+        }
+
+        int from = first - blockStart;
+        int to = last < 0 ? plainLen : Math.min(plainLen, last - blockStart + 1);
+        if (from >= to) return CardResult.ok(new ImageRange(new byte[0], first, total));
+        return CardResult.ok(new ImageRange(Arrays.copyOfRange(plain, from, to), first, total));
+    }
+
+    private int getPointsInternal(ApduTransport via) throws CardException {
         CommandAPDU cmd = new CommandAPDU(0xA0, INS_GET_POINTS, 0x00, 0x00);
-        ResponseAPDU resp = channel.transmit(cmd);
+        ResponseAPDU resp = transmit(Priority.INTERACTIVE, via, cmd);
 
         if (resp.getSW() == 0x9000) {
             byte[] data = resp.getData();
@@ -477,8 +894,8 @@ public class CardService {
     /**
      * Gửi thông tin User xuống thẻ (Có PIN để mã hóa)
      */
-    public String updateUserInfo(String pin, String userInfoString) {
-        if (channel == null) return "Error: Card not connected";
+    public CardResult<Void> updateUserInfo(String pin, String userInfoString) {
+        if (channel == null) return CardResult.notConnected();
 
         try {
             // 1. Chuẩn bị PIN
@@ -498,7 +915,7 @@ public class CardService {
             // Nếu tổng lớn hơn 255, ta phải chia gói (Chunking) giống hệt Upload ảnh.
             // Nhưng để đơn giản cho Demo Lần 1, ta giả sử info ngắn (<240 bytes).
             if (totalLen > MAX_APDU_DATA_SIZE) {
-                return "Error: Data too long (" + totalLen + "). Chunking needed.";
+                return CardResult.invalid("Data too long (" + totalLen + "). Chunking needed.");
             }
 
             byte[] payload = new byte[totalLen];
@@ -512,24 +929,26 @@ public class CardService {
 
             // 4. Gửi lệnh
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_SET_INFO, 0x00, 0x00, payload);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() == 0x9000) {
-                return "Success";
+                // Thẻ tự mã hóa -> ta không biết bản mã mới, bỏ bản cũ trong mirror
+                mirrorInvalidate(CardMirrorStore.Kind.USER_INFO);
+                return CardResult.ok(null);
             } else {
-                return "Error: SW=" + Integer.toHexString(res.getSW());
+                return CardResult.sw(res.getSW(), "SW=" + Integer.toHexString(res.getSW()));
             }
 
         } catch (Exception e) {
             e.printStackTrace();
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
         }
     }
 
     // --- LẤY THÔNG TIN BẢO MẬT (SECURE GET INFO) ---
-    // Cần PIN để giải mã AES
-    public String getSecureInfo(String pin) {
-        if (channel == null) return "Error: Card not connected";
+    // Cần PIN để giải mã AES. Trả về "info|points"
+    public CardResult<String> getSecureInfo(String pin) {
+        if (channel == null) return CardResult.notConnected();
         try {
             byte[] pinBytes = pin.getBytes();
             int pinLen = pinBytes.length;
@@ -540,46 +959,53 @@ public class CardService {
             System.arraycopy(pinBytes, 0, payload, 1, pinLen);
 
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_GET_INFO_SECURE, 0x00, 0x00, payload, 256); // Le=256
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() != 0x9000) {
-                return "Error: SW=" + Integer.toHexString(res.getSW());
+                return CardResult.sw(res.getSW(), "SW=" + Integer.toHexString(res.getSW()));
             }
 
             // Dữ liệu nhận về là Plaintext (đã giải mã) nhưng có thể còn padding 0x00
             String infoString = new String(res.getData(), StandardCharsets.UTF_8).trim();
 
-            int points = getPointsInternal();
+            int points = getPointsInternal(null);
 
             if (points == -1) points = 0;
 
-            return infoString + '|' + points;
+            return CardResult.ok(infoString + '|' + points);
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
         }
     }
 
-    public String getRawUserInfo() {
-        if (channel == null) return "Error: Card not connected";
+    /**
+     * Bản mã thông tin người dùng trên thẻ (NOT_SUPPORTED nếu Applet cũ chưa có lệnh 0x25)
+     */
+    public CardResult<byte[]> getRawUserInfo() {
+        if (channel == null) return CardResult.notConnected();
         try {
             // Gọi lệnh 0x25 (INS_GET_RAW_USER_DATA)
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_GET_INFO_RAW, 0x00, 0x00, 256); // Le=256
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() == 0x9000) {
-                return HexUtils.bytesToHex(res.getData());
+                byte[] data = res.getData();
+                mirrorPut(CardMirrorStore.Kind.USER_INFO, data);
+                return CardResult.ok(data);
             } else if (res.getSW() == 0x6D00) {
-                return "Not Supported (Update Applet to view)";
+                CardResult<byte[]> unsupported = CardResult.sw(res.getSW(), "Not Supported (Update Applet to view)");
+                return unsupported.withText("Not Supported (Update Applet to view)");
             } else {
-                return "Error SW=" + Integer.toHexString(res.getSW());
+                CardResult<byte[]> failed = CardResult.sw(res.getSW(), "Get raw info failed SW=" + Integer.toHexString(res.getSW()));
+                return failed.withText("Error SW=" + Integer.toHexString(res.getSW()));
             }
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
         }
     }
 
-    public String updatePoints(int newPoints) {
-        if (channel == null) return "Error: Card not connected";
+    public CardResult<Void> updatePoints(int newPoints) {
+        if (channel == null) return CardResult.notConnected();
         try {
             // Chuyển int -> 2 bytes array
             byte[] data = new byte[2];
@@ -588,19 +1014,78 @@ public class CardService {
 
             // APDU: [CLA] [INS] [P1] [P2] [Lc] [DATA]
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_UPDATE_POINTS, 0x00, 0x00, data);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() == 0x9000) {
-                return "Success";
+                return CardResult.ok(null);
             } else if (res.getSW() == 0x6982) { // Security Status Not Satisfied
-                return "Error: Need Verify PIN first";
+                return CardResult.sw(res.getSW(), "Need Verify PIN first");
             } else {
-                return "Error: Update Failed SW=" + Integer.toHexString(res.getSW());
+                return CardResult.sw(res.getSW(), "Update Failed SW=" + Integer.toHexString(res.getSW()));
             }
 
         } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return CardResult.failed(e);
+        }
+    }
+
+    /**
+     * Điểm hiện tại trên thẻ, -1 nếu lỗi
+     */
+    public int getPoints() {
+        if (channel == null) return -1;
+        ApduTransport via = acquireReadChannel(Priority.INTERACTIVE);
+        try {
+            return getPointsInternal(via);
+        } catch (CardException e) {
+            return -1;
+        } finally {
+            releaseReadChannel(via);
+        }
+    }
+
+    /**
+     * Đọc điểm của đúng thẻ expectedCardId trong 1 lượt scheduler (thẻ khác đang cắm -> lỗi)
+     */
+    public int readPoints(String expectedCardId, Priority priority) throws CardException {
+        return scheduler.execute(priority, () -> readPointsInternal(transportFor(expectedCardId)));
+    }
+
+    /**
+     * Ghi điểm kiểu compare-and-set: chỉ ghi newPoints nếu thẻ đang cắm vẫn là expectedCardId
+     * và điểm trên thẻ vẫn bằng expected.
+     * Kiểm tra thẻ + đọc + so sánh + ghi nằm trong cùng 1 lượt scheduler nên không lệnh (hay lần đổi thẻ) nào chen vào giữa.
+     *
+     * @return true nếu đã ghi, false nếu điểm trên thẻ đã khác expected
+     * @throws CardException khi thẻ đã bị đổi, hoặc thẻ từ chối (vd. 6982 - chưa verify PIN)
+     */
+    public boolean compareAndSetPoints(String expectedCardId, int expected, int newPoints, Priority priority) throws CardException {
+        return scheduler.execute(priority, () -> {
+            ApduTransport ch = transportFor(expectedCardId);
+            if (readPointsInternal(ch) != expected) return false;
+
+            byte[] data = {(byte) ((newPoints >> 8) & 0xFF), (byte) (newPoints & 0xFF)};
+            ResponseAPDU res = ch.transmit(new CommandAPDU(0xA0, INS_UPDATE_POINTS, 0x00, 0x00, data));
+            if (res.getSW() != 0x9000) throw new CardException("Update points failed SW=" + Integer.toHexString(res.getSW()));
+            return true;
+        });
+    }
+
+    // Gọi trong lượt scheduler: transport của thẻ đang cắm, chỉ khi đó đúng là thẻ mong đợi
+    private ApduTransport transportFor(String expectedCardId) throws CardException {
+        ApduTransport ch = transport;
+        if (ch == null) throw new CardException("Card not connected");
+        if (expectedCardId == null || !expectedCardId.equals(currentCardId)) {
+            throw new CardException("Card changed (expected " + expectedCardId + ", present " + currentCardId + ")");
         }
+        return ch;
+    }
+
+    private int readPointsInternal(ApduTransport ch) throws CardException {
+        ResponseAPDU cur = ch.transmit(new CommandAPDU(0xA0, INS_GET_POINTS, 0x00, 0x00));
+        if (cur.getSW() != 0x9000) throw new CardException("Read points failed SW=" + Integer.toHexString(cur.getSW()));
+        byte[] d = cur.getData();
+        return ((d[0] & 0xFF) << 8) | (d[1] & 0xFF);
     }
 
     /**
@@ -627,10 +1112,13 @@ public class CardService {
             System.arraycopy(newPinBytes, 0, payload, offset, newPinBytes.length);
 
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_CHANGE_PIN, 0x00, 0x00, payload);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             int sw = res.getSW();
             if (sw == 0x9000) {
+                // Dữ liệu trên thẻ đã được mã hóa lại bằng khóa mới
+                mirrorInvalidate(CardMirrorStore.Kind.USER_INFO);
+                mirrorInvalidate(CardMirrorStore.Kind.IMAGE);
                 return new PinResponse(true, "PIN Changed & Data Re-encrypted", 3, "9000");
             }
 
@@ -659,7 +1147,7 @@ public class CardService {
             // Lệnh này thường cần quyền Admin hoặc Secure Channel,
             // nhưng trong Demo Applet thì đang mở (public) nên gọi là được.
             CommandAPDU cmd = new CommandAPDU(0xA0, INS_UNBLOCK_PIN, 0x00, 0x00);
-            ResponseAPDU res = channel.transmit(cmd);
+            ResponseAPDU res = transmit(Priority.INTERACTIVE, cmd);
 
             if (res.getSW() == 0x9000) {
                 return new PinResponse(true, "PIN Reset to Default (123456)", 3, "9000");
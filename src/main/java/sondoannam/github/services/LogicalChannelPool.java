@@ -0,0 +1,138 @@
+package sondoannam.github.services;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Pool kênh logic (MANAGE CHANNEL) trên 1 thẻ, mỗi kênh đã SELECT Applet riêng.
+ * Các thao tác chỉ đọc (đọc ảnh, CardID, điểm) mượn kênh riêng để trạng thái phiên Applet
+ * của chúng tách khỏi kênh cơ bản đang ghi ảnh / verify PIN. Không làm lệnh chạy song song:
+ * mọi APDU vẫn qua CardScheduler của thẻ, thẻ và đầu đọc chỉ xử lý 1 APDU tại 1 thời điểm.
+ * <p>
+ * Số kênh chỉ mã hoá được trong CLA liên ngành (ISO 7816-4). SunPCSC để nguyên CLA độc quyền
+ * (bit 8 = 1), nên lệnh CLA A0 của Applet gửi trên kênh logic thực chất đi trên kênh cơ bản
+ * -> với CLA độc quyền pool tắt ngay từ đầu, mọi thao tác dùng kênh cơ bản.
+ * Thẻ hoặc Applet không hỗ trợ (openLogicalChannel lỗi, SELECT trên kênh phụ bị từ chối
+ * vì Applet không MultiSelectable...) -> cũng tắt pool.
+ * <p>
+ * Mở/đóng kênh là lệnh gửi xuống thẻ nên phải gọi trong lượt CardScheduler.
+ */
+public class LogicalChannelPool {
+    private final Card card;
+    private final String reader;
+    private final byte[] aid;
+    private final int maxChannels;
+
+    private final Deque<ApduTransport> idle = new ArrayDeque<>();
+    private final List<ApduTransport> opened = new ArrayList<>();
+    private volatile boolean supported;
+    private boolean closed;
+
+    /**
+     * @param appletCla   CLA các lệnh của Applet; độc quyền (bit 8 = 1) thì không mang được số kênh -> tắt
+     * @param maxChannels Số kênh logic tối đa (0 = tắt, chỉ dùng kênh cơ bản)
+     */
+    public LogicalChannelPool(Card card, String reader, byte[] aid, int appletCla, int maxChannels) {
+        this.card = card;
+        this.reader = reader;
+        this.aid = aid;
+        this.maxChannels = maxChannels;
+        this.supported = maxChannels > 0 && !isProprietary(appletCla);
+    }
+
+    /**
+     * CLA độc quyền: bit 8 = 1, không có chỗ cho số kênh logic
+     */
+    public static boolean isProprietary(int cla) {
+        return (cla & 0x80) != 0;
+    }
+
+    /**
+     * Lấy 1 kênh đang rảnh, null nếu không có
+     */
+    public synchronized ApduTransport poll() {
+        return idle.poll();
+    }
+
+    /**
+     * Còn mở thêm kênh được không
+     */
+    public synchronized boolean canOpen() {
+        return supported && !closed && opened.size() < maxChannels;
+    }
+
+    /**
+     * Mở kênh mới và SELECT Applet trên kênh đó; null nếu không mở được
+     */
+    public ApduTransport open() {
+        if (!canOpen()) return null;
+        CardChannel ch = null;
+        try {
+            ch = card.openLogicalChannel();
+            ApduTransport tr = new ApduTransport(ch, reader);
+            ResponseAPDU res = tr.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, aid));
+            if (res.getSW() != 0x9000) {
+                disable("SELECT trên kênh " + ch.getChannelNumber() + " trả SW=" + Integer.toHexString(res.getSW()));
+                closeQuietly(ch);
+                return null;
+            }
+            synchronized (this) {
+                if (closed) {
+                    closeQuietly(ch);
+                    return null;
+                }
+                opened.add(tr);
+            }
+            System.out.println("[INFO] Đã mở kênh logic " + ch.getChannelNumber());
+            return tr;
+        } catch (CardException | RuntimeException e) {
+            disable(e.getMessage());
+            if (ch != null) closeQuietly(ch);
+            return null;
+        }
+    }
+
+    /**
+     * Trả kênh về pool (bỏ qua kênh không thuộc pool này, vd. thẻ đã đổi)
+     */
+    public synchronized void release(ApduTransport transport) {
+        if (transport == null || closed || !opened.contains(transport)) return;
+        idle.push(transport);
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    private void disable(String reason) {
+        if (supported) {
+            System.out.println("[WARN] Không dùng được kênh logic (" + reason + "), dùng kênh cơ bản.");
+        }
+        supported = false;
+    }
+
+    /**
+     * Đóng mọi kênh logic đã mở (gọi khi đổi thẻ / ngắt kết nối)
+     */
+    public synchronized void close() {
+        closed = true;
+        for (ApduTransport tr : opened) closeQuietly(tr.getChannel());
+        opened.clear();
+        idle.clear();
+    }
+
+    private static void closeQuietly(CardChannel ch) {
+        try {
+            ch.close();
+        } catch (Exception ignored) {
+            // Thẻ đã bị rút thì kênh cũng không còn
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package sondoannam.github.services;
+
+import sondoannam.github.services.CardScheduler.Priority;
+
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sổ cộng điểm ghi-sau (write-behind).
+ * Mỗi lần /points/add chỉ ghi 1 dòng vào journal trên đĩa (fsync) rồi trả về ngay;
+ * các delta đang chờ của 1 thẻ được gộp lại và ghi xuống thẻ bằng 1 lệnh INS_UPDATE_POINTS
+ * theo chu kỳ, hoặc ngay khi thẻ được kết nối lại.
+ * <p>
+ * Journal (text, append-only):
+ * ADD [cardId] [seq] [delta]             - 1 lần cộng/trừ điểm
+ * INTENT [cardId] [seq] [before] [after] - sắp ghi điểm thẻ từ before thành after cho các ADD có seq nhỏ hơn hoặc bằng seq
+ * FLUSH [cardId] [seq] [applied]         - đã ghi xong: các ADD đó nằm trên thẻ, trừ phần không vào được
+ *                                          (điểm thẻ bị chặn trong [0, 65535]) vẫn còn chờ
+ * CANCEL [cardId] [seq]                  - INTENT trước đó chắc chắn không được ghi
+ * <p>
+ * Tắt máy giữa lúc ghi thẻ và dòng FLUSH -> INTENT còn treo. Lần flush sau đọc điểm thẻ:
+ * bằng after thì coi như đã ghi (chỉ ghi FLUSH), bằng before thì ghi lại bình thường,
+ * khác cả hai thì giữ nguyên delta và báo lỗi (không đoán, tránh cộng 2 lần).
+ * <p>
+ * Thẻ có tổng delta về 0 (ghi xong, hoặc +n rồi -n) bị bỏ khỏi danh sách chờ;
+ * không còn thẻ nào chờ thì journal được cắt về rỗng.
+ */
+public class PointsLedger implements AutoCloseable {
+    private static final int MAX_POINTS = 0xFFFF; // Thẻ lưu điểm 16-bit
+    private static final int MAX_CAS_RETRIES = 3;
+    // 1 lượt flush không chờ thẻ quá lâu khi đang giữ flushLock (thẻ bận liên tục -> để chu kỳ sau)
+    private static final long FLUSH_TIMEOUT_MS = 5_000;
+
+    private static class Pending {
+        long lastSeq;
+        int delta;
+        // INTENT chưa có FLUSH/CANCEL tương ứng
+        Intent intent;
+    }
+
+    private static class Intent {
+        final long seq;
+        final int before;
+        final int after;
+
+        Intent(long seq, int before, int after) {
+            this.seq = seq;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final Path path;
+    private final CardService cardService;
+    private final FileChannel journal;
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final ScheduledExecutorService flusher;
+    // Chỉ 1 lượt flush tại 1 thời điểm, tránh cộng 1 delta 2 lần
+    private final Object flushLock = new Object();
+    private long nextSeq = 1;
+    // Lỗi flush gần nhất đã in ra (giữ flushLock); lỗi lặp lại mỗi chu kỳ (vd. chưa verify PIN) chỉ in 1 lần
+    private String lastFlushWarning;
+
+    public PointsLedger(Path path, CardService cardService, long flushIntervalMs) throws IOException {
+        this.path = path;
+        this.cardService = cardService;
+        replay();
+        this.journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "points-ledger-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushCurrentCard, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Dựng lại các delta chưa ghi xuống thẻ từ journal
+    private void replay() throws IOException {
+        if (!Files.exists(path)) return;
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        // cardId -> (seq -> delta) của các ADD chưa được FLUSH
+        Map<String, TreeMap<Long, Integer>> adds = new HashMap<>();
+        Map<String, Intent> intents = new HashMap<>();
+        for (String line : lines) {
+            String[] p = line.trim().split(" ");
+            try {
+                if (p.length == 4 && p[0].equals("ADD")) {
+                    long seq = Long.parseLong(p[2]);
+                    adds.computeIfAbsent(p[1], k -> new TreeMap<>()).put(seq, Integer.parseInt(p[3]));
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                } else if (p.length == 5 && p[0].equals("INTENT")) {
+                    long seq = Long.parseLong(p[2]);
+                    intents.put(p[1], new Intent(seq, Integer.parseInt(p[3]), Integer.parseInt(p[4])));
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                } else if ((p.length == 3 || p.length == 4) && p[0].equals("FLUSH")) {
+                    long seq = Long.parseLong(p[2]);
+                    TreeMap<Long, Integer> cardAdds = adds.get(p[1]);
+                    if (cardAdds != null) {
+                        Map<Long, Integer> done = cardAdds.headMap(seq, true);
+                        int sum = 0;
+                        for (int d : done.values()) sum += d;
+                        done.clear();
+                        // Journal cũ (3 trường) = ghi đủ cả delta
+                        int remainder = p.length == 4 ? sum - Integer.parseInt(p[3]) : 0;
+                        if (remainder != 0) cardAdds.put(seq, remainder);
+                    }
+                    clearIntent(intents, p[1], seq);
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                } else if (p.length == 3 && p[0].equals("CANCEL")) {
+                    clearIntent(intents, p[1], Long.parseLong(p[2]));
+                }
+            } catch (NumberFormatException e) {
+                // Dòng cuối bị cụt do tắt máy giữa chừng -> bỏ qua
+                System.out.println("[WARN] Bỏ qua dòng journal hỏng: " + line);
+            }
+        }
+
+        for (Map.Entry<String, TreeMap<Long, Integer>> e : adds.entrySet()) {
+            if (e.getValue().isEmpty()) continue;
+            Pending pd = new Pending();
+            pd.lastSeq = e.getValue().lastKey();
+            for (int d : e.getValue().values()) pd.delta += d;
+            pd.intent = intents.get(e.getKey());
+            // Cộng rồi trừ đúng bằng nhau (+n/-n) -> không còn gì phải ghi
+            if (pd.delta == 0 && pd.intent == null) continue;
+            pending.put(e.getKey(), pd);
+            if (pd.intent != null) {
+                System.out.println("[WARN] Thẻ " + e.getKey() + " có lần ghi điểm chưa xác nhận ("
+                        + pd.intent.before + " -> " + pd.intent.after + "), sẽ đối chiếu khi thẻ được cắm.");
+            }
+        }
+        System.out.println("[INFO] Points ledger: " + pending.size() + " thẻ còn điểm chờ ghi.");
+    }
+
+    private static void clearIntent(Map<String, Intent> intents, String cardId, long seq) {
+        Intent intent = intents.get(cardId);
+        if (intent != null && intent.seq <= seq) intents.remove(cardId);
+    }
+
+    private void appendLine(String line) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) journal.write(buf);
+        journal.force(false);
+    }
+
+    /**
+     * CardID hợp lệ: 8 byte dạng hex in hoa (như CardService đọc từ thẻ)
+     */
+    public static boolean isValidCardId(String cardId) {
+        return cardId != null && cardId.matches("[0-9A-F]{16}");
+    }
+
+    /**
+     * Ghi nhận 1 lần cộng (hoặc trừ) điểm, bền vững trên đĩa trước khi trả về
+     *
+     * @return Tổng delta đang chờ ghi xuống thẻ
+     * @throws IllegalArgumentException cardId sai định dạng, |delta| vượt sức chứa của thẻ, hoặc tổng chờ bị tràn
+     */
+    public synchronized int add(String cardId, int delta) throws IOException {
+        if (!isValidCardId(cardId)) throw new IllegalArgumentException("Invalid cardId: " + cardId);
+        if (delta == 0 || Math.abs(delta) > MAX_POINTS) {
+            throw new IllegalArgumentException("delta must be non-zero and within ±" + MAX_POINTS);
+        }
+        Pending existing = pending.get(cardId);
+        int total;
+        try {
+            total = Math.addExact(existing == null ? 0 : existing.delta, delta);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Pending delta overflow for card " + cardId);
+        }
+
+        long seq = nextSeq++;
+        appendLine("ADD " + cardId + " " + seq + " " + delta);
+        Pending pd = pending.computeIfAbsent(cardId, k -> new Pending());
+        pd.delta = total;
+        pd.lastSeq = seq;
+        dropIfSettled(cardId, pd);
+        return total;
+    }
+
+    // Gọi khi đang giữ lock của ledger: bỏ thẻ không còn delta chờ (và không có INTENT treo),
+    // hết thẻ chờ thì cắt journal về rỗng
+    private void dropIfSettled(String cardId, Pending pd) throws IOException {
+        if (pd.delta == 0 && pd.intent == null) pending.remove(cardId);
+        if (pending.isEmpty()) journal.truncate(0);
+    }
+
+    public synchronized int getPending(String cardId) {
+        Pending pd = pending.get(cardId);
+        return pd == null ? 0 : pd.delta;
+    }
+
+    /**
+     * Ghi các delta đang chờ của thẻ đang cắm xuống thẻ (1 lệnh ghi cho cả lô)
+     */
+    public void flushCurrentCard() {
+        String cardId = cardService.getCurrentCardId();
+        if (cardId == null) return;
+
+        synchronized (flushLock) {
+            RequestContext ctx = RequestContext.open("points-flush", FLUSH_TIMEOUT_MS);
+            try {
+                flushCard(cardId);
+            } finally {
+                ctx.close();
+            }
+        }
+    }
+
+    private void flushCard(String cardId) {
+        long seq;
+        int delta;
+        Intent intent;
+        synchronized (this) {
+            Pending pd = pending.get(cardId);
+            if (pd == null) return;
+            seq = pd.lastSeq;
+            delta = pd.delta;
+            intent = pd.intent;
+        }
+
+        try {
+            if (intent != null) {
+                reconcile(cardId, intent);
+                return; // Phần còn lại để chu kỳ sau, khi trạng thái đã rõ
+            }
+
+            int written = -1;
+            for (int attempt = 0; attempt < MAX_CAS_RETRIES && written < 0; attempt++) {
+                int current = cardService.readPoints(cardId, Priority.BACKGROUND);
+                int target = (int) Math.max(0, Math.min(MAX_POINTS, (long) current + delta));
+                // Không cộng/trừ thêm được gì (vd. trừ quá số điểm đang có) -> giữ delta chờ
+                if (target == current) return;
+
+                synchronized (this) {
+                    Pending pd = pending.get(cardId);
+                    // Delta đã về 0 trong lúc đọc thẻ (vd. vừa có lệnh trừ bù lại) -> không ghi nữa
+                    if (pd == null) return;
+                    appendLine("INTENT " + cardId + " " + seq + " " + current + " " + target);
+                    pd.intent = new Intent(seq, current, target);
+                }
+                if (cardService.compareAndSetPoints(cardId, current, target, Priority.BACKGROUND)) {
+                    written = target;
+                    recordFlush(cardId, seq, target - current);
+                    String applied = (target - current >= 0 ? "+" : "") + (target - current);
+                    System.out.println("[INFO] Đã ghi " + applied + " điểm xuống thẻ " + cardId + " -> " + written
+                            + (target - current != delta ? " (còn chờ " + (delta - (target - current)) + ")" : ""));
+                } else {
+                    // Điểm đã khác lúc đọc -> lệnh ghi chắc chắn chưa chạy
+                    recordCancel(cardId, seq);
+                }
+            }
+            if (written < 0) {
+                warnOnce("Điểm thẻ " + cardId + " thay đổi liên tục, hoãn flush.");
+            } else {
+                lastFlushWarning = null;
+            }
+        } catch (CardException e) {
+            // Thẻ vắng/đã đổi, hoặc 6982: chưa verify PIN. Giữ nguyên delta (và INTENT nếu có) để lần sau.
+            warnOnce("Chưa ghi được điểm xuống thẻ " + cardId + ": " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("[ERROR] Không ghi được journal điểm: " + e.getMessage());
+        }
+    }
+
+    // Chỉ in khi lỗi khác lần trước (giữ flushLock)
+    private void warnOnce(String message) {
+        if (message.equals(lastFlushWarning)) return;
+        lastFlushWarning = message;
+        System.out.println("[WARN] " + message);
+    }
+
+    // Đối chiếu 1 INTENT còn treo với điểm đang có trên thẻ
+    private void reconcile(String cardId, Intent intent) throws CardException, IOException {
+        int current = cardService.readPoints(cardId, Priority.BACKGROUND);
+        if (current == intent.after) {
+            recordFlush(cardId, intent.seq, intent.after - intent.before);
+            System.out.println("[INFO] Thẻ " + cardId + " đã nhận lần ghi điểm trước (" + intent.before + " -> " + intent.after + ")");
+        } else if (current == intent.before) {
+            recordCancel(cardId, intent.seq);
+            System.out.println("[INFO] Thẻ " + cardId + " chưa nhận lần ghi điểm trước, sẽ ghi lại.");
+        } else {
+            System.out.println("[ERROR] Không xác định được lần ghi điểm trước của thẻ " + cardId + " (INTENT "
+                    + intent.before + " -> " + intent.after + ", thẻ đang có " + current + "), giữ nguyên delta chờ.");
+        }
+    }
+
+    // Đã ghi applied điểm cho các ADD có seq nhỏ hơn hoặc bằng seq; phần không ghi được vẫn chờ
+    private synchronized void recordFlush(String cardId, long seq, int applied) throws IOException {
+        appendLine("FLUSH " + cardId + " " + seq + " " + applied);
+        // Có thể đã có ADD mới trong lúc ghi thẻ -> chỉ trừ phần đã ghi
+        Pending pd = pending.computeIfAbsent(cardId, k -> new Pending());
+        pd.delta -= applied;
+        pd.lastSeq = Math.max(pd.lastSeq, seq);
+        pd.intent = null;
+        dropIfSettled(cardId, pd);
+    }
+
+    private synchronized void recordCancel(String cardId, long seq) throws IOException {
+        appendLine("CANCEL " + cardId + " " + seq);
+        Pending pd = pending.get(cardId);
+        if (pd != null) {
+            pd.intent = null;
+            dropIfSettled(cardId, pd);
+        }
+    }
+
+    /**
+     * Yêu cầu flush ngay trên luồng nền (vd. khi vừa kết nối lại thẻ)
+     */
+    public void flushSoon() {
+        flusher.execute(this::flushCurrentCard);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,385 @@
+package sondoannam.github.services;
+
+import com.google.gson.Gson;
+import sondoannam.github.utils.HexUtils;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Phát hành thẻ hàng loạt: đọc manifest (JSONL hoặc CSV) các user + ảnh,
+ * chia việc cho MỌI đầu đọc đang cắm, mỗi đầu đọc 1 luồng.
+ * <p>
+ * Pipeline 2 tầng: 1 luồng chuẩn bị (đọc ảnh + mã hóa AES) chạy trước,
+ * đẩy job đã mã hóa vào hàng đợi nhỏ; các luồng đầu đọc chỉ việc
+ * register -> ghi info -> ghi ảnh -> ghi điểm. Nhờ vậy ảnh của thẻ kế tiếp
+ * được mã hóa trong lúc thẻ hiện tại đang được ghi.
+ * <p>
+ * imagePath chỉ được đọc bên trong thư mục ảnh cấu hình sẵn (imageDir); không cấu hình thì
+ * manifest chỉ được dùng imageHex (manifest đến từ HTTP, không được cho đọc file tuỳ ý trên máy).
+ */
+public class ProvisioningEngine {
+    private static final long POLL_MS = 200;
+
+    /**
+     * 1 dòng manifest
+     */
+    public static class ManifestEntry {
+        public String pin;
+        public String fullName;
+        public String dob;
+        public String address;
+        public String phone;
+        public Integer points;
+        public String imagePath; // File ảnh gốc (tương đối với imageDir), hoặc
+        public String imageHex;  // ảnh gốc dạng Hex
+    }
+
+    public static class ProvisionedCard {
+        public int index;
+        public String reader;
+        public String cardId;
+        public boolean success;
+        public String message;
+        public long millis;
+        // CardID + khóa công khai từ registerCard, không trả ra HTTP
+        public transient CardService.Registration registration;
+    }
+
+    public static class Report {
+        public int total;
+        public int succeeded;
+        public int failed;
+        public int readers;
+        public long elapsedMs;
+        public double cardsPerMinute;
+        public List<ProvisionedCard> cards;
+    }
+
+    private static class PreparedJob {
+        int index;
+        ManifestEntry entry;
+        String userInfo;
+        byte[] encryptedImage;
+        String prepareError;
+    }
+
+    private final ReaderPool readerPool;
+    private final CardService crypto; // Chỉ dùng để mã hóa ảnh, không cần thẻ
+    private final long swapTimeoutMs;
+    // Thư mục duy nhất imagePath được phép trỏ vào, null = không cho dùng imagePath
+    private final Path imageDir;
+    private final Gson gson = new Gson();
+
+    public ProvisioningEngine(ReaderPool readerPool, long swapTimeoutMs, Path imageDir) {
+        this.readerPool = readerPool;
+        this.crypto = new CardService();
+        this.swapTimeoutMs = swapTimeoutMs;
+        this.imageDir = imageDir;
+    }
+
+    /**
+     * Đọc manifest: JSONL (mỗi dòng 1 object) hoặc CSV có dòng tiêu đề
+     * pin,fullName,dob,address,phone,points,imagePath|imageHex
+     */
+    public List<ManifestEntry> parseManifest(String text) {
+        List<ManifestEntry> entries = new ArrayList<>();
+        String[] lines = text.split("\\r?\\n");
+        List<String> header = null;
+
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            if (line.startsWith("{")) {
+                entries.add(gson.fromJson(line, ManifestEntry.class));
+                continue;
+            }
+
+            List<String> cols = splitCsv(line);
+            if (header == null) {
+                header = cols;
+                continue;
+            }
+            Map<String, String> row = new HashMap<>();
+            for (int i = 0; i < header.size() && i < cols.size(); i++) {
+                row.put(header.get(i), cols.get(i));
+            }
+            ManifestEntry e = new ManifestEntry();
+            e.pin = row.get("pin");
+            e.fullName = row.get("fullName");
+            e.dob = row.get("dob");
+            e.address = row.get("address");
+            e.phone = row.get("phone");
+            String points = row.get("points");
+            e.points = points == null || points.isEmpty() ? null : Integer.parseInt(points);
+            e.imagePath = emptyToNull(row.get("imagePath"));
+            e.imageHex = emptyToNull(row.get("imageHex"));
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    // Tách 1 dòng CSV, hỗ trợ trường đặt trong "..." (địa chỉ có dấu phẩy)
+    private static List<String> splitCsv(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cur.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cols.add(cur.toString().trim());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        cols.add(cur.toString().trim());
+        return cols;
+    }
+
+    /**
+     * Chạy phát hành cho toàn bộ manifest, trả về kết quả từng thẻ + tốc độ
+     */
+    public Report run(List<ManifestEntry> entries) throws CardException {
+        long start = System.currentTimeMillis();
+        List<CardTerminal> terminals = readerPool.terminals();
+        List<ProvisionedCard> results = Collections.synchronizedList(new ArrayList<>());
+
+        if (terminals.isEmpty()) {
+            for (int i = 0; i < entries.size(); i++) {
+                results.add(fail(i, null, "No card reader available", start));
+            }
+            return report(results, 0, start);
+        }
+
+        BlockingQueue<PreparedJob> ready = new ArrayBlockingQueue<>(terminals.size());
+        ConcurrentLinkedQueue<PreparedJob> retry = new ConcurrentLinkedQueue<>();
+        AtomicInteger activeWorkers = new AtomicInteger(terminals.size());
+        AtomicBoolean preparerDone = new AtomicBoolean(false);
+
+        Thread preparer = new Thread(() -> {
+            try {
+                outer:
+                for (int i = 0; i < entries.size(); i++) {
+                    PreparedJob job = prepare(i, entries.get(i));
+                    while (!ready.offer(job, POLL_MS, TimeUnit.MILLISECONDS)) {
+                        if (activeWorkers.get() == 0) {
+                            results.add(fail(i, null, "No reader left to provision this card", start));
+                            continue outer;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                preparerDone.set(true);
+            }
+        }, "provision-prepare");
+        preparer.start();
+
+        List<Thread> workers = new ArrayList<>();
+        for (CardTerminal terminal : terminals) {
+            Thread w = new Thread(() -> {
+                try {
+                    runReader(terminal, ready, retry, preparerDone, results);
+                } finally {
+                    activeWorkers.decrementAndGet();
+                }
+            }, "provision-" + terminal.getName());
+            w.start();
+            workers.add(w);
+        }
+
+        try {
+            preparer.join();
+            for (Thread w : workers) w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Job còn sót lại: mọi đầu đọc đã hết thời gian chờ thẻ mới
+        List<PreparedJob> leftovers = new ArrayList<>(retry);
+        ready.drainTo(leftovers);
+        for (PreparedJob job : leftovers) {
+            results.add(fail(job.index, null, "No blank card inserted in time", start));
+        }
+
+        return report(results, terminals.size(), start);
+    }
+
+    private PreparedJob prepare(int index, ManifestEntry e) {
+        PreparedJob job = new PreparedJob();
+        job.index = index;
+        job.entry = e;
+        try {
+            if (e.pin == null || e.pin.isEmpty()) throw new IllegalArgumentException("pin is required");
+            // Thứ tự phải thống nhất với /update-info
+            job.userInfo = e.fullName + "|" + e.dob + "|" + e.address + "|" + e.phone;
+
+            byte[] image = null;
+            if (e.imageHex != null) image = HexUtils.hexToBytes(e.imageHex);
+            else if (e.imagePath != null) image = Files.readAllBytes(resolveImage(e.imagePath));
+            if (image != null) job.encryptedImage = crypto.encryptImage(image, e.pin);
+        } catch (Exception ex) {
+            job.prepareError = "Prepare failed: " + ex.getMessage();
+        }
+        return job;
+    }
+
+    // imagePath tương đối với imageDir; đường dẫn (kể cả qua symlink) ra ngoài imageDir bị từ chối
+    private Path resolveImage(String imagePath) throws IOException {
+        if (imageDir == null) {
+            throw new IllegalArgumentException("imagePath is disabled (start with -Dprovision.imageDir=<dir>), use imageHex");
+        }
+        Path base = imageDir.toRealPath();
+        Path file = base.resolve(imagePath).normalize();
+        if (!file.startsWith(base) || !file.toRealPath().startsWith(base)) {
+            throw new IllegalArgumentException("imagePath outside the image directory: " + imagePath);
+        }
+        return file;
+    }
+
+    private void runReader(CardTerminal terminal, BlockingQueue<PreparedJob> ready,
+                           ConcurrentLinkedQueue<PreparedJob> retry, AtomicBoolean preparerDone,
+                           List<ProvisionedCard> results) {
+        // CardService riêng: mỗi thẻ được kết nối lại, không được đụng tới phiên của người dùng
+        CardService service = readerPool.dedicatedServiceFor(terminal);
+        boolean firstCard = true;
+
+        while (true) {
+            PreparedJob job = retry.poll();
+            try {
+                if (job == null) job = ready.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (job == null) {
+                if (preparerDone.get() && ready.isEmpty() && retry.isEmpty()) return;
+                continue;
+            }
+
+            long t0 = System.currentTimeMillis();
+            if (job.prepareError != null) {
+                results.add(fail(job.index, terminal.getName(), job.prepareError, t0));
+                continue;
+            }
+
+            if (!waitForBlankCard(terminal, firstCard)) {
+                // Đầu đọc này không có thẻ mới -> trả job cho đầu đọc khác
+                retry.add(job);
+                return;
+            }
+            firstCard = false;
+            results.add(provision(service, terminal, job));
+        }
+    }
+
+    // Thẻ đầu tiên: chỉ cần có thẻ. Các thẻ sau: chờ rút thẻ cũ rồi cắm thẻ mới.
+    private boolean waitForBlankCard(CardTerminal terminal, boolean firstCard) {
+        try {
+            if (firstCard) return terminal.waitForCardPresent(swapTimeoutMs);
+            System.out.println("[INFO] " + terminal.getName() + ": rút thẻ vừa phát hành và cắm thẻ mới...");
+            return terminal.waitForCardAbsent(swapTimeoutMs) && terminal.waitForCardPresent(swapTimeoutMs);
+        } catch (CardException e) {
+            System.out.println("[WARN] " + terminal.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private ProvisionedCard provision(CardService service, CardTerminal terminal, PreparedJob job) {
+        long t0 = System.currentTimeMillis();
+        String reader = terminal.getName();
+        ManifestEntry e = job.entry;
+
+        if (!service.connect(terminal)) return fail(job.index, reader, "Connect/select failed", t0);
+
+        CardResult<CardService.Registration> reg = service.registerCard(e.pin);
+        if (!reg.isOk()) return fail(job.index, reader, "Register: " + reg, t0);
+        String cardId = reg.getValue().cardId;
+
+        CardResult<Void> info = service.updateUserInfo(e.pin, job.userInfo);
+        if (!info.isOk()) return failCard(job.index, reader, cardId, "Update info: " + info, t0);
+
+        if (job.encryptedImage != null) {
+            CardResult<Integer> img = service.uploadEncryptedImage(job.encryptedImage);
+            if (!img.isOk()) return failCard(job.index, reader, cardId, "Upload image: " + img, t0);
+        }
+
+        if (e.points != null) {
+            CardService.PinResponse verify = service.verifyPin(e.pin);
+            if (!verify.success) return failCard(job.index, reader, cardId, "Verify PIN: " + verify.message, t0);
+            CardResult<Void> pts = service.updatePoints(e.points);
+            if (!pts.isOk()) return failCard(job.index, reader, cardId, "Update points: " + pts, t0);
+        }
+
+        ProvisionedCard r = new ProvisionedCard();
+        r.index = job.index;
+        r.reader = reader;
+        r.cardId = cardId;
+        r.success = true;
+        r.message = "Provisioned";
+        r.millis = System.currentTimeMillis() - t0;
+        r.registration = reg.getValue();
+        System.out.println("[INFO] Đã phát hành thẻ #" + job.index + " (" + cardId + ") trên " + reader + " trong " + r.millis + " ms");
+        return r;
+    }
+
+    private static ProvisionedCard fail(int index, String reader, String message, long t0) {
+        return failCard(index, reader, null, message, t0);
+    }
+
+    private static ProvisionedCard failCard(int index, String reader, String cardId, String message, long t0) {
+        ProvisionedCard r = new ProvisionedCard();
+        r.index = index;
+        r.reader = reader;
+        r.cardId = cardId;
+        r.success = false;
+        r.message = message;
+        r.millis = System.currentTimeMillis() - t0;
+        System.out.println("[WARN] Thẻ #" + index + " lỗi: " + message);
+        return r;
+    }
+
+    private static Report report(List<ProvisionedCard> results, int readers, long start) {
+        Report report = new Report();
+        report.cards = new ArrayList<>(results);
+        report.cards.sort(Comparator.comparingInt(r -> r.index));
+        report.total = report.cards.size();
+        for (ProvisionedCard r : report.cards) {
+            if (r.success) report.succeeded++;
+            else report.failed++;
+        }
+        report.readers = readers;
+        report.elapsedMs = System.currentTimeMillis() - start;
+        report.cardsPerMinute = report.elapsedMs == 0 ? 0 : report.succeeded * 60_000.0 / report.elapsedMs;
+        return report;
+    }
+}
@@ -0,0 +1,97 @@
+package sondoannam.github.services;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mỗi đầu đọc 1 CardService (và 1 CardScheduler) riêng, dùng cho các việc chạy trên
+ * nhiều đầu đọc cùng lúc. CardService chính của Main (phiên của người dùng, /connect dò
+ * mọi đầu đọc) không bị gắn vào đầu đọc nào và không bao giờ bị kết nối lại từ đây:
+ * việc chỉ đọc (/export-raw) dùng lại nó khi nó đang giữ đúng thẻ đang cắm,
+ * còn lại (và mọi việc ghi thẻ như /provision) dùng CardService riêng của đầu đọc.
+ */
+public class ReaderPool {
+    private final CardService primary;
+    private final TerminalRegistry registry;
+    private final Map<String, CardService> services = new ConcurrentHashMap<>();
+
+    public ReaderPool(CardService primary, TerminalRegistry registry) {
+        this.primary = primary;
+        this.registry = registry;
+        // Rút đầu đọc -> bỏ luôn CardService của nó
+        registry.addListener(new TerminalRegistry.Listener() {
+            @Override
+            public void readerAdded(CardTerminal terminal) {
+            }
+
+            @Override
+            public void readerRemoved(String name) {
+                CardService removed = services.remove(name);
+                if (removed != null) removed.disconnect();
+            }
+        });
+    }
+
+    /**
+     * CardService để đọc trên 1 đầu đọc (chưa chắc đã kết nối): CardService chính nếu nó
+     * đang giữ đầu đọc này, không thì CardService riêng của đầu đọc
+     */
+    public CardService serviceFor(CardTerminal terminal) {
+        if (terminal.getName().equals(primary.getTerminalName())) return primary;
+        return dedicatedServiceFor(terminal);
+    }
+
+    /**
+     * CardService riêng của đầu đọc, không bao giờ là CardService chính
+     * (cho việc kết nối lại / ghi thẻ, vd. phát hành thẻ hàng loạt)
+     */
+    public CardService dedicatedServiceFor(CardTerminal terminal) {
+        return services.computeIfAbsent(terminal.getName(), name -> new CardService());
+    }
+
+    /**
+     * Các đầu đọc hợp lệ hiện có
+     */
+    public List<CardTerminal> terminals() {
+        return registry.candidates();
+    }
+
+    /**
+     * Trạng thái các đầu đọc đã kết nối: tên, giao thức đã thương lượng, CardID
+     */
+    public List<Map<String, String>> describe() {
+        List<CardService> all = new ArrayList<>();
+        all.add(primary);
+        all.addAll(services.values());
+
+        List<Map<String, String>> out = new ArrayList<>();
+        for (CardService s : all) {
+            if (s.getTerminalName() == null) continue;
+            Map<String, String> info = new LinkedHashMap<>();
+            info.put("reader", s.getTerminalName());
+            info.put("protocol", s.getProtocol());
+            info.put("cardId", s.getCurrentCardId());
+            out.add(info);
+        }
+        return out;
+    }
+
+    /**
+     * CardService của đầu đọc, đã kết nối tới thẻ đang cắm; null nếu không có thẻ hoặc không kết nối được.
+     * Đã có CardID thì kiểm tra lại thẻ (có thể đã bị thay) trước khi dùng lại kết nối cũ.
+     * CardService chính chỉ được dùng lại khi vẫn giữ đúng thẻ, không bị kết nối lại.
+     */
+    public CardService connectIfPresent(CardTerminal terminal) throws CardException {
+        if (!terminal.isCardPresent()) return null;
+        CardService service = serviceFor(terminal);
+        if (service.isSameCardPresent()) return service;
+        if (service == primary) service = dedicatedServiceFor(terminal);
+        if (service.isSameCardPresent() || service.connect(terminal)) return service;
+        return null;
+    }
+}
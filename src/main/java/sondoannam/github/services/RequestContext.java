@@ -0,0 +1,70 @@
+package sondoannam.github.services;
+
+import javax.smartcardio.CardException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ngữ cảnh của 1 request HTTP đang xử lý: hạn chót (deadline).
+ * Gắn vào luồng hiện tại (ThreadLocal) để CardScheduler kiểm tra trước mỗi APDU
+ * mà không phải truyền tham số qua mọi hàm của CardService.
+ * HttpServer của JDK không báo khi client ngắt kết nối, nên chỉ deadline dừng được việc đang chờ.
+ */
+public class RequestContext implements AutoCloseable {
+    private static final ThreadLocal<RequestContext> CURRENT = new ThreadLocal<>();
+
+    private final String name;
+    private final long deadlineNanos;
+
+    private RequestContext(String name, long timeoutMs) {
+        this.name = name;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Mở ngữ cảnh cho luồng hiện tại, đóng bằng try-with-resources
+     */
+    public static RequestContext open(String name, long timeoutMs) {
+        RequestContext ctx = new RequestContext(name, timeoutMs);
+        CURRENT.set(ctx);
+        return ctx;
+    }
+
+    /**
+     * Ngữ cảnh của luồng hiện tại, null nếu không chạy trong request (việc nền...)
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Ném lỗi nếu request đã quá hạn -> dừng vòng lặp APDU giữa chừng
+     */
+    public void checkpoint() throws CardException {
+        if (isExpired()) throw new CardException("Deadline exceeded (" + name + ")");
+    }
+
+    /**
+     * True nếu request hiện tại đã hết hạn (dùng để chọn mã HTTP 504)
+     */
+    public static boolean currentTimedOut() {
+        RequestContext ctx = CURRENT.get();
+        return ctx != null && ctx.isExpired();
+    }
+
+    @Override
+    public void close() {
+        if (CURRENT.get() == this) CURRENT.remove();
+    }
+}
@@ -0,0 +1,189 @@
+package sondoannam.github.services;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import sondoannam.github.utils.HexUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Xác thực chữ ký challenge ngay tại middleware, không cần gọi server từ xa.
+ * - Cache public key RSA của từng thẻ (lấy lúc /register), lưu xuống file JSON.
+ * - Phát nonce (challenge) có hạn dùng, mỗi nonce chỉ dùng được 1 lần; số nonce chưa dùng có giới hạn.
+ * - Kiểm tra chữ ký ngay trên luồng HTTP gọi tới (RSA verify chỉ vài chục µs,
+ *   các request verify đã chạy song song trên pool của HttpServer).
+ */
+public class SignatureVerifier {
+    private static final int NONCE_SIZE = 32;
+
+    public static class VerifyResult {
+        public boolean valid;
+        public String message;
+
+        public VerifyResult(boolean valid, String message) {
+            this.valid = valid;
+            this.message = message;
+        }
+    }
+
+    // Dạng lưu xuống file
+    private static class StoredKey {
+        String modulus;
+        String exponent;
+    }
+
+    private static class Challenge {
+        final String cardId;
+        final long expiresAtMs;
+
+        Challenge(String cardId, long expiresAtMs) {
+            this.cardId = cardId;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final Path keyFile;
+    private final String algorithm;
+    private final long challengeTtlMs;
+    private final Gson gson = new Gson();
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String, StoredKey> storedKeys = new ConcurrentHashMap<>();
+    private final Map<String, PublicKey> keys = new ConcurrentHashMap<>();
+    // Theo thứ tự phát = thứ tự hết hạn (TTL cố định), chỉ truy cập khi giữ lock của this
+    private final Map<String, Challenge> challenges = new LinkedHashMap<>();
+    private final int maxChallenges;
+
+    /**
+     * @param maxChallenges Số challenge chưa dùng, chưa hết hạn tối đa (chặn việc gọi /challenge liên tục làm phình bộ nhớ)
+     */
+    public SignatureVerifier(Path keyFile, String algorithm, long challengeTtlMs, int maxChallenges) throws IOException {
+        this.keyFile = keyFile;
+        this.algorithm = algorithm;
+        this.challengeTtlMs = challengeTtlMs;
+        this.maxChallenges = maxChallenges;
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(keyFile)) return;
+        String json = Files.readString(keyFile, StandardCharsets.UTF_8);
+        Map<String, StoredKey> loaded = gson.fromJson(json, new TypeToken<Map<String, StoredKey>>() {}.getType());
+        if (loaded == null) return;
+        for (Map.Entry<String, StoredKey> e : loaded.entrySet()) {
+            try {
+                keys.put(e.getKey(), toPublicKey(e.getValue().modulus, e.getValue().exponent));
+                storedKeys.put(e.getKey(), e.getValue());
+            } catch (Exception ex) {
+                System.out.println("[WARN] Bỏ qua public key hỏng của thẻ " + e.getKey());
+            }
+        }
+        System.out.println("[INFO] Đã nạp " + keys.size() + " public key thẻ.");
+    }
+
+    private synchronized void persist() {
+        try {
+            Path tmp = keyFile.resolveSibling(keyFile.getFileName() + ".tmp");
+            Files.writeString(tmp, gson.toJson(new HashMap<>(storedKeys)), StandardCharsets.UTF_8);
+            Files.move(tmp, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("[WARN] Không lưu được public key: " + e.getMessage());
+        }
+    }
+
+    private static PublicKey toPublicKey(String modulusHex, String exponentHex) throws Exception {
+        return toPublicKey(HexUtils.hexToBytes(modulusHex), HexUtils.hexToBytes(exponentHex));
+    }
+
+    private static PublicKey toPublicKey(byte[] modulus, byte[] exponent) throws Exception {
+        RSAPublicKeySpec spec = new RSAPublicKeySpec(new BigInteger(1, modulus), new BigInteger(1, exponent));
+        return KeyFactory.getInstance("RSA").generatePublic(spec);
+    }
+
+    /**
+     * Lưu public key của thẻ (modulus/exponent dạng byte như registerCard trả về, file vẫn lưu Hex)
+     */
+    public void registerKey(String cardId, byte[] modulus, byte[] exponent) throws Exception {
+        keys.put(cardId, toPublicKey(modulus, exponent));
+        StoredKey stored = new StoredKey();
+        stored.modulus = HexUtils.bytesToHex(modulus);
+        stored.exponent = HexUtils.bytesToHex(exponent);
+        storedKeys.put(cardId, stored);
+        persist();
+    }
+
+    public boolean hasKey(String cardId) {
+        return keys.containsKey(cardId);
+    }
+
+    /**
+     * Phát 1 challenge mới cho thẻ
+     *
+     * @return Nonce dạng Hex
+     * @throws IllegalStateException khi đã có đủ maxChallenges challenge chưa dùng
+     */
+    public synchronized String issueChallenge(String cardId) {
+        long now = System.currentTimeMillis();
+        // Dọn nonce hết hạn từ đầu map, dừng ở nonce đầu tiên còn hạn
+        Iterator<Challenge> it = challenges.values().iterator();
+        while (it.hasNext() && it.next().expiresAtMs < now) it.remove();
+        if (challenges.size() >= maxChallenges) {
+            throw new IllegalStateException("Too many outstanding challenges");
+        }
+
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        String nonceHex = HexUtils.bytesToHex(nonce);
+        challenges.put(nonceHex, new Challenge(cardId, now + challengeTtlMs));
+        return nonceHex;
+    }
+
+    public long getChallengeTtlMs() {
+        return challengeTtlMs;
+    }
+
+    /**
+     * Kiểm tra chữ ký của thẻ trên 1 challenge đã phát (challenge bị huỷ sau lần kiểm tra này)
+     */
+    public VerifyResult verify(String cardId, String challengeHex, String signatureHex) {
+        Challenge c = null;
+        if (challengeHex != null) {
+            synchronized (this) {
+                c = challenges.remove(challengeHex.toUpperCase(Locale.ROOT));
+            }
+        }
+        if (c == null) return new VerifyResult(false, "Unknown or already used challenge");
+        if (c.expiresAtMs < System.currentTimeMillis()) return new VerifyResult(false, "Challenge expired");
+        if (!c.cardId.equals(cardId)) return new VerifyResult(false, "Challenge was issued to another card");
+
+        PublicKey key = keys.get(cardId);
+        if (key == null) return new VerifyResult(false, "Unknown card (not registered here)");
+
+        try {
+            Signature sig = Signature.getInstance(algorithm);
+            sig.initVerify(key);
+            sig.update(HexUtils.hexToBytes(challengeHex));
+            return sig.verify(HexUtils.hexToBytes(signatureHex))
+                    ? new VerifyResult(true, "Signature valid")
+                    : new VerifyResult(false, "Signature invalid");
+        } catch (Exception e) {
+            return new VerifyResult(false, "Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package sondoannam.github.services;
+
+import sondoannam.github.utils.HexUtils;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Danh sách đầu đọc dùng chung cho cả tiến trình.
+ * - Luồng nền dò PC/SC định kỳ, chỉ cập nhật phần thay đổi (cắm thêm / rút đầu đọc)
+ *   và giữ nguyên handle CardTerminal của đầu đọc còn cắm -> request không bao giờ tự liệt kê PC/SC.
+ * - Đầu đọc được chọn theo luật cấu hình qua -Dreaders.match, thứ tự luật là thứ tự ưu tiên:
+ * <pre>
+ *   -Dreaders.match="name:JAVACOS,name:Virtual,atr:3B8F8001,-name:Hello,name:.*"
+ * </pre>
+ *   Mỗi luật gồm các điều kiện nối bằng '&amp;': name:&lt;regex, không phân biệt hoa thường&gt;,
+ *   atr:&lt;tiền tố ATR dạng Hex&gt;. Luật bắt đầu bằng '-' là loại trừ.
+ *   Điều kiện ATR chỉ kiểm tra được khi đã kết nối thẻ (xem {@link #acceptsCard}).
+ */
+public class TerminalRegistry {
+    // Mặc định: ưu tiên đầu đọc ảo của JCIDE như trước, sau đó tới mọi đầu đọc thật
+    public static final String DEFAULT_RULES = "name:JAVACOS,name:Virtual,name:.*";
+    private static final long DEFAULT_POLL_MS = 2_000;
+
+    /**
+     * Nhận thông báo khi danh sách đầu đọc thay đổi
+     */
+    public interface Listener {
+        void readerAdded(CardTerminal terminal);
+
+        void readerRemoved(String name);
+    }
+
+    static class Rule {
+        final Pattern name;
+        final byte[] atrPrefix;
+        final boolean exclude;
+
+        Rule(Pattern name, byte[] atrPrefix, boolean exclude) {
+            this.name = name;
+            this.atrPrefix = atrPrefix;
+            this.exclude = exclude;
+        }
+
+        boolean matchesName(String terminalName) {
+            return name == null || name.matcher(terminalName).find();
+        }
+
+        boolean matchesAtr(byte[] atr) {
+            if (atrPrefix == null) return true;
+            return atr != null && atr.length >= atrPrefix.length
+                    && Arrays.equals(Arrays.copyOf(atr, atrPrefix.length), atrPrefix);
+        }
+    }
+
+    private static volatile TerminalRegistry shared;
+
+    private final List<Rule> rules;
+    private final long pollMs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private TerminalFactory factory;
+    // Tên -> handle, giữ nguyên thứ tự PC/SC trả về
+    private final Map<String, CardTerminal> known = new LinkedHashMap<>();
+    // Bản chụp đã lọc + sắp theo ưu tiên, thay cả list mỗi lần đổi nên đọc không cần khoá
+    private volatile List<CardTerminal> candidates = List.of();
+    private volatile String lastError;
+
+    public TerminalRegistry(String rules, long pollMs) {
+        this.rules = parseRules(rules);
+        this.pollMs = pollMs;
+    }
+
+    /**
+     * Registry dùng chung, tạo + quét lần đầu khi gọi lần đầu (nên gọi lúc khởi động server)
+     */
+    public static TerminalRegistry shared() {
+        TerminalRegistry r = shared;
+        if (r == null) {
+            synchronized (TerminalRegistry.class) {
+                r = shared;
+                if (r == null) {
+                    r = new TerminalRegistry(System.getProperty("readers.match", DEFAULT_RULES),
+                            Long.getLong("readers.pollMs", DEFAULT_POLL_MS));
+                    r.refresh();
+                    r.startPolling();
+                    shared = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    static List<Rule> parseRules(String spec) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String raw : spec.split(",")) {
+            String entry = raw.trim();
+            if (entry.isEmpty()) continue;
+            boolean exclude = entry.startsWith("-");
+            if (exclude) entry = entry.substring(1);
+
+            Pattern name = null;
+            byte[] atr = null;
+            for (String cond : entry.split("&")) {
+                cond = cond.trim();
+                if (cond.startsWith("name:")) {
+                    name = Pattern.compile(cond.substring(5), Pattern.CASE_INSENSITIVE);
+                } else if (cond.startsWith("atr:")) {
+                    atr = HexUtils.hexToBytes(cond.substring(4).replace(" ", ""));
+                } else {
+                    throw new IllegalArgumentException("Luật đầu đọc không hợp lệ: " + raw);
+                }
+            }
+            parsed.add(new Rule(name, atr, exclude));
+        }
+        return parsed;
+    }
+
+    private void startPolling() {
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(pollMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                refresh();
+            }
+        }, "terminal-registry");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Quét PC/SC 1 lần và cập nhật phần chênh lệch (chạy trên luồng nền)
+     */
+    public synchronized void refresh() {
+        List<CardTerminal> current;
+        boolean freshFactory = false;
+        try {
+            if (factory == null) {
+                factory = newFactory();
+                freshFactory = true;
+            }
+            current = factory.terminals().list();
+            if (lastError != null) System.out.println("[INFO] PC/SC hoạt động trở lại.");
+            lastError = null;
+        } catch (CardException | RuntimeException e) {
+            String msg = String.valueOf(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            if (msg.contains("SCARD_E_NO_READERS_AVAILABLE")) {
+                current = List.of();
+                lastError = null;
+            } else {
+                if (!msg.equals(lastError)) System.out.println("[WARN] Không liệt kê được đầu đọc: " + msg);
+                lastError = msg;
+                // Context PC/SC có thể đã hỏng (vd. pcscd khởi động lại) -> lần sau tạo factory mới
+                factory = null;
+                return;
+            }
+        }
+
+        Map<String, CardTerminal> seen = new LinkedHashMap<>();
+        for (CardTerminal t : current) seen.put(t.getName(), t);
+
+        boolean changed = false;
+        // Factory mới = context PC/SC mới: handle cũ (kể cả đầu đọc cùng tên) thuộc context đã hỏng,
+        // nên bỏ hết và thông báo rút/cắm lại để các CardService kết nối lại bằng handle mới
+        for (String name : new ArrayList<>(known.keySet())) {
+            if (freshFactory || !seen.containsKey(name)) {
+                known.remove(name);
+                changed = true;
+                System.out.println("[INFO] Đã rút đầu đọc: " + name + (seen.containsKey(name) ? " (context PC/SC mới, cắm lại)" : ""));
+                for (Listener l : listeners) l.readerRemoved(name);
+            }
+        }
+        for (Map.Entry<String, CardTerminal> e : seen.entrySet()) {
+            if (!known.containsKey(e.getKey())) {
+                known.put(e.getKey(), e.getValue());
+                changed = true;
+                boolean usable = rank(e.getKey()) >= 0;
+                System.out.println("[INFO] Đã cắm đầu đọc: " + e.getKey() + (usable ? "" : " (không khớp luật, bỏ qua)"));
+                if (usable) {
+                    for (Listener l : listeners) l.readerAdded(e.getValue());
+                }
+            }
+        }
+        if (changed) rebuildCandidates();
+    }
+
+    /**
+     * Mỗi lần gọi tạo 1 factory (và context PC/SC) mới; TerminalFactory.getDefault() luôn trả
+     * cùng 1 instance nên không dùng được để phục hồi sau khi context hỏng
+     */
+    private static TerminalFactory newFactory() {
+        try {
+            return TerminalFactory.getInstance("PC/SC", null);
+        } catch (NoSuchAlgorithmException e) {
+            return TerminalFactory.getDefault();
+        }
+    }
+
+    private void rebuildCandidates() {
+        List<CardTerminal> list = new ArrayList<>();
+        for (CardTerminal t : known.values()) {
+            if (rank(t.getName()) >= 0) list.add(t);
+        }
+        list.sort(Comparator.comparingInt(t -> rank(t.getName())));
+        candidates = List.copyOf(list);
+    }
+
+    /**
+     * Thứ tự ưu tiên theo tên (chỉ số luật đầu tiên có thể khớp), -1 nếu đầu đọc bị loại
+     */
+    private int rank(String terminalName) {
+        for (int i = 0; i < rules.size(); i++) {
+            Rule r = rules.get(i);
+            if (!r.matchesName(terminalName)) continue;
+            // Luật loại trừ có điều kiện ATR chỉ quyết định được khi đã có thẻ
+            if (r.exclude && r.atrPrefix == null) return -1;
+            if (!r.exclude) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Các đầu đọc hợp lệ, sắp theo ưu tiên (bản cache, không gọi PC/SC)
+     */
+    public List<CardTerminal> candidates() {
+        return candidates;
+    }
+
+    /**
+     * Kiểm tra thẻ vừa kết nối trên đầu đọc này có được phép dùng không (luật có điều kiện ATR)
+     */
+    public boolean acceptsCard(String terminalName, ATR atr) {
+        byte[] bytes = atr == null ? null : atr.getBytes();
+        for (Rule r : rules) {
+            if (r.matchesName(terminalName) && r.matchesAtr(bytes)) return !r.exclude;
+        }
+        return false;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+}
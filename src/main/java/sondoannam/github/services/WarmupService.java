@@ -0,0 +1,138 @@
+package sondoannam.github.services;
+
+import com.google.gson.Gson;
+import sondoannam.github.utils.HexUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Khởi động nhanh: làm trước các việc khởi tạo tốn thời gian (nạp provider PC/SC, JCA,
+ * reflection của Gson, nạp class của các hàm nóng) song song, TRƯỚC khi mở cổng HTTP.
+ * Nhờ vậy request /connect, /verify-pin, /read-image đầu tiên không phải trả giá khởi tạo.
+ */
+public class WarmupService {
+    // Chạy thử các hàm hex/AES vài vòng để nạp + link class; quá ít để JIT (C2 cần hàng nghìn lần gọi),
+    // việc biên dịch để cho traffic thật
+    private static final int HOT_PATH_ITERATIONS = 3;
+    private static final int SAMPLE_IMAGE_SIZE = 4096;
+
+    private final CardService cardService;
+    private final Gson gson;
+
+    public WarmupService(CardService cardService, Gson gson) {
+        this.cardService = cardService;
+        this.gson = gson;
+    }
+
+    /**
+     * Chạy warm-up và chờ xong. Bước lỗi không chặn server khởi động, nhưng được in tổng kết
+     * và trả về để nơi gọi biết warm-up chưa đầy đủ.
+     *
+     * @param preconnect Có kết nối thẻ + SELECT applet luôn hay không
+     * @param jsonTypes  Các class request/response mà Gson sẽ gặp
+     * @return Các bước lỗi ("tên: lý do"), rỗng nếu warm-up đầy đủ
+     */
+    public List<String> run(boolean preconnect, Class<?>... jsonTypes) {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "warmup");
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<String> failures = new ArrayList<>();
+        try {
+            List<CompletableFuture<String>> tasks = new ArrayList<>();
+            tasks.add(task(pool, "PC/SC", () -> {
+                // Quét đầu đọc lần đầu + khởi động luồng theo dõi cắm/rút
+                TerminalRegistry.shared();
+                if (preconnect && !cardService.connect()) {
+                    throw new IllegalStateException("không kết nối trước được tới thẻ");
+                }
+            }));
+            tasks.add(task(pool, "JCA", this::warmCrypto));
+            tasks.add(task(pool, "Gson", () -> warmGson(jsonTypes)));
+            tasks.add(task(pool, "Hot paths", this::warmHotPaths));
+
+            for (CompletableFuture<String> task : tasks) {
+                String failure = task.join();
+                if (failure != null) failures.add(failure);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        if (failures.isEmpty()) {
+            System.out.println("[INFO] Warm-up xong trong " + ms + " ms");
+        } else {
+            System.out.println("[WARN] Warm-up CHƯA ĐẦY ĐỦ (" + ms + " ms), " + failures.size()
+                    + " bước lỗi: " + String.join("; ", failures));
+        }
+        return failures;
+    }
+
+    // Kết quả: null nếu thành công, "tên: lý do" nếu lỗi
+    private CompletableFuture<String> task(ExecutorService pool, String name, ThrowingRunnable body) {
+        return CompletableFuture.supplyAsync(() -> {
+            long t0 = System.nanoTime();
+            String failure = null;
+            try {
+                body.run();
+            } catch (Exception e) {
+                // Warm-up lỗi (vd. chưa có đầu đọc) không được chặn server khởi động
+                failure = name + ": " + e.getMessage();
+                System.out.println("[WARN] Warm-up " + name + " lỗi: " + e.getMessage());
+            }
+            System.out.println("[INFO] Warm-up " + name + ": " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+            return failure;
+        }, pool);
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    // Khởi tạo provider SHA-256 và AES/ECB giống đường đi của CardService
+    private void warmCrypto() throws Exception {
+        byte[] key = MessageDigest.getInstance("SHA-256").digest("000000".getBytes("UTF-8"));
+        SecretKeySpec secretKey = new SecretKeySpec(key, 0, 16, "AES");
+
+        Cipher enc = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        enc.init(Cipher.ENCRYPT_MODE, secretKey);
+        byte[] encrypted = enc.doFinal(new byte[SAMPLE_IMAGE_SIZE]);
+
+        Cipher dec = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        dec.init(Cipher.DECRYPT_MODE, secretKey);
+        dec.doFinal(encrypted);
+    }
+
+    // Gson dựng TypeAdapter bằng reflection ở lần đầu gặp mỗi class
+    private void warmGson(Class<?>... jsonTypes) {
+        for (Class<?> type : jsonTypes) {
+            Object value = gson.fromJson("{}", type);
+            gson.toJson(value);
+        }
+        gson.toJson(new CardService.PinResponse(true, "warmup", 3, "9000"));
+    }
+
+    private void warmHotPaths() throws Exception {
+        byte[] sample = new byte[SAMPLE_IMAGE_SIZE];
+        SecretKeySpec secretKey = new SecretKeySpec(new byte[16], "AES");
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        for (int i = 0; i < HOT_PATH_ITERATIONS; i++) {
+            String hex = HexUtils.bytesToHex(sample);
+            sample = HexUtils.hexToBytes(hex);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            cipher.doFinal(sample);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package sondoannam.github.tools;
+
+import com.sun.net.httpserver.HttpServer;
+import sondoannam.github.Main;
+import sondoannam.github.services.ApduRecorder;
+import sondoannam.github.services.CardService;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Phát lại 1 phiên APDU đã ghi (POST /apdu-recording): in tóm tắt file ghi, rồi chạy HTTP server
+ * của Main trên ReplayCard để gửi lại đúng các request của phiên đó (vd. /get-raw-data + /upload-image)
+ * với phiên bản middleware đang build, thẻ trả lời và trễ y như phiên thật.
+ * Khi tắt (Ctrl+C) in thống kê khớp lệnh của ReplayCard.
+ * <p>
+ * Chạy: java -cp target/classes:target/lib/* sondoannam.github.tools.ApduReplay \
+ * --log recordings/apdu-20250101-120000.apdulog [--reader "Tên đầu đọc"] [--scale 1.0] [--port 18082] [--summary-only true]
+ */
+public class ApduReplay {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        String logFile = opts.get("log");
+        if (logFile == null) {
+            System.out.println("[ERROR] Thiếu --log <file .apdulog>");
+            return;
+        }
+        Path file = Paths.get(logFile);
+        double scale = Double.parseDouble(opts.getOrDefault("scale", "1.0"));
+        int port = Integer.parseInt(opts.getOrDefault("port", "18082"));
+
+        printSummary(ApduRecorder.read(file));
+        if (Boolean.parseBoolean(opts.getOrDefault("summary-only", "false"))) return;
+
+        // File mirror/journal tạm, không đụng tới dữ liệu thật
+        Path tmp = Files.createTempDirectory("replay");
+        System.setProperty("mirror.path", tmp.resolve("card-mirror.dat").toString());
+        System.setProperty("points.journal", tmp.resolve("points-journal.log").toString());
+        System.setProperty("keys.path", tmp.resolve("card-keys.json").toString());
+
+        ReplayCard card = ReplayCard.load(file, opts.get("reader"), scale);
+        CardService service = new CardService();
+        service.attach(card);
+        HttpServer server = Main.start(port, service);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            System.out.println("[INFO] Phát lại: " + card.summary());
+        }));
+        System.out.printf("[INFO] Đang phát lại %s (trễ x%.2f) trên cổng %d, gửi lại các request của phiên rồi Ctrl+C%n",
+                file.getFileName(), scale, port);
+    }
+
+    // Số lệnh, tổng thời gian thẻ theo từng đầu đọc / INS
+    private static void printSummary(List<ApduRecorder.Exchange> log) {
+        Map<String, long[]> readers = new LinkedHashMap<>();
+        Map<Integer, long[]> byIns = new TreeMap<>();
+        long span = 0;
+        for (ApduRecorder.Exchange e : log) {
+            long[] r = readers.computeIfAbsent(e.reader, k -> new long[2]);
+            r[0]++;
+            r[1] += e.durationMicros;
+            int ins = e.command.length > 1 ? e.command[1] & 0xFF : -1;
+            long[] s = byIns.computeIfAbsent(ins, k -> new long[3]);
+            s[0]++;
+            s[1] += e.durationMicros;
+            if (e.sw() != 0x9000) s[2]++;
+            span = Math.max(span, e.startMicros + e.durationMicros);
+        }
+
+        System.out.printf("[INFO] %d APDU trong %.1f ms%n", log.size(), span / 1000.0);
+        for (Map.Entry<String, long[]> r : readers.entrySet()) {
+            String name = r.getKey().isEmpty() ? "(không tên)" : r.getKey();
+            System.out.printf("   > %s: %d APDU, thẻ bận %.1f ms%n", name, r.getValue()[0], r.getValue()[1] / 1000.0);
+        }
+        System.out.printf("%n%-6s %8s %12s %10s %8s%n", "INS", "count", "total(ms)", "avg(µs)", "SW!=9000");
+        for (Map.Entry<Integer, long[]> s : byIns.entrySet()) {
+            long[] v = s.getValue();
+            System.out.printf("%-6s %8d %12.1f %10d %8d%n", String.format("%02X", s.getKey()),
+                    v[0], v[1] / 1000.0, v[1] / v[0], v[2]);
+        }
+        System.out.println();
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return opts;
+    }
+}
@@ -0,0 +1,203 @@
+package sondoannam.github.tools;
+
+import com.sun.net.httpserver.HttpServer;
+import sondoannam.github.Main;
+import sondoannam.github.services.CardService;
+import sondoannam.github.utils.HexUtils;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Công cụ đo tải end-to-end: chạy HTTP server của Main trên 1 thẻ giả lập (SimulatedCard)
+ * với độ trễ APDU cấu hình được, bắn tải hỗn hợp song song vào các endpoint
+ * rồi in throughput, p50/p90/p99 và tỉ lệ lỗi cho từng loại request.
+ * <p>
+ * Chạy: java -cp target/classes:target/lib/* sondoannam.github.tools.LoadTest \
+ * --threads 16 --duration 30 --latency-us 3000 --mix verify=50,info=30,upload=10,read=10 [--logical-channels 0..3]
+ * <p>
+ * --logical-channels chỉ đổi số kênh thẻ giả lập mở được; Applet dùng CLA độc quyền A0
+ * nên middleware vẫn gửi mọi lệnh trên kênh cơ bản.
+ */
+public class LoadTest {
+    private static final String PIN = "123456";
+    private static final int IMAGE_SIZE = 3000;
+
+    private static class Op {
+        final String name;
+        final String method;
+        final String path;
+        final String body;
+
+        Op(String name, String method, String path, String body) {
+            this.name = name;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    private static class Stats {
+        final List<Long> latenciesNanos = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        int port = Integer.parseInt(opts.getOrDefault("port", "18081"));
+        int threads = Integer.parseInt(opts.getOrDefault("threads", "16"));
+        int durationSec = Integer.parseInt(opts.getOrDefault("duration", "20"));
+        int warmupSec = Integer.parseInt(opts.getOrDefault("warmup", "3"));
+        long latencyUs = Long.parseLong(opts.getOrDefault("latency-us", "2000"));
+        long jitterUs = Long.parseLong(opts.getOrDefault("jitter-us", "500"));
+        String mix = opts.getOrDefault("mix", "verify=50,info=30,upload=10,read=10");
+        int logicalChannels = Integer.parseInt(opts.getOrDefault("logical-channels", "3"));
+
+        // File mirror/journal tạm, không đụng tới dữ liệu thật
+        Path tmp = Files.createTempDirectory("loadtest");
+        System.setProperty("mirror.path", tmp.resolve("card-mirror.dat").toString());
+        System.setProperty("points.journal", tmp.resolve("points-journal.log").toString());
+        System.setProperty("keys.path", tmp.resolve("card-keys.json").toString());
+
+        CardService service = new CardService();
+        service.attach(new SimulatedCard(latencyUs, jitterUs, logicalChannels));
+        HttpServer server = Main.start(port, service);
+        String base = "http://localhost:" + port;
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        byte[] image = new byte[IMAGE_SIZE];
+        new Random(42).nextBytes(image);
+        String imageHex = HexUtils.bytesToHex(image);
+        String pinJson = "{\"pin\":\"" + PIN + "\"}";
+
+        // Chuẩn bị thẻ: đăng ký, ghi info + ảnh để các request đọc có dữ liệu
+        send(client, base, new Op("setup", "POST", "/register", pinJson));
+        send(client, base, new Op("setup", "POST", "/update-info",
+                "{\"pin\":\"" + PIN + "\",\"fullName\":\"Load Test\",\"dob\":\"2000-01-01\",\"address\":\"HN\",\"phone\":\"0900000000\"}"));
+        send(client, base, new Op("setup", "POST", "/upload-image", "{\"pin\":\"" + PIN + "\",\"hexData\":\"" + imageHex + "\"}"));
+
+        Map<String, Op> catalog = new LinkedHashMap<>();
+        catalog.put("verify", new Op("verify", "POST", "/verify-pin", pinJson));
+        catalog.put("info", new Op("info", "POST", "/get-info-secure", pinJson));
+        catalog.put("upload", new Op("upload", "POST", "/upload-image", "{\"pin\":\"" + PIN + "\",\"hexData\":\"" + imageHex + "\"}"));
+        catalog.put("read", new Op("read", "POST", "/read-image", pinJson));
+        catalog.put("cardid", new Op("cardid", "GET", "/card-id", null));
+        catalog.put("raw", new Op("raw", "GET", "/get-raw-data", null));
+        catalog.put("points", new Op("points", "POST", "/points/add", "{\"delta\":1}"));
+
+        // Bảng chọn theo trọng số
+        List<Op> weighted = new ArrayList<>();
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            Op op = catalog.get(kv[0].trim());
+            if (op == null) throw new IllegalArgumentException("Unknown op: " + kv[0] + " (có: " + catalog.keySet() + ")");
+            for (int i = 0; i < Integer.parseInt(kv[1].trim()); i++) weighted.add(op);
+            stats.put(op.name, new Stats());
+        }
+
+        System.out.printf("[INFO] Load test: %d luồng, %ds (+%ds warm-up), trễ APDU %dµs±%dµs, mix=%s%n",
+                threads, durationSec, warmupSec, latencyUs, jitterUs, mix);
+
+        long measureStart = System.nanoTime() + warmupSec * 1_000_000_000L;
+        long end = measureStart + durationSec * 1_000_000_000L;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    Op op = weighted.get(ThreadLocalRandom.current().nextInt(weighted.size()));
+                    long t0 = System.nanoTime();
+                    int status = send(client, base, op);
+                    long t1 = System.nanoTime();
+                    if (t0 < measureStart) continue;
+
+                    Stats s = stats.get(op.name);
+                    s.latenciesNanos.add(t1 - t0);
+                    if (status == 503) s.rejected.incrementAndGet();
+                    else if (status < 200 || status >= 300) s.errors.incrementAndGet();
+                }
+            }, "load-" + t);
+            w.start();
+            workers.add(w);
+        }
+        for (Thread w : workers) w.join();
+
+        report(stats, durationSec);
+        server.stop(0);
+        System.exit(0);
+    }
+
+    // Trả về HTTP status, -1 nếu lỗi mạng
+    private static int send(HttpClient client, String base, Op op) {
+        try {
+            HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + op.path)).timeout(Duration.ofSeconds(60));
+            if ("POST".equals(op.method)) {
+                b.POST(HttpRequest.BodyPublishers.ofString(op.body));
+            } else {
+                b.GET();
+            }
+            HttpResponse<String> res = client.send(b.build(), HttpResponse.BodyHandlers.ofString());
+            // /verify-pin luôn trả 200, lỗi nằm trong JSON
+            if (res.statusCode() == 200 && res.body().contains("\"success\":false")) return 500;
+            return res.statusCode();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void report(Map<String, Stats> stats, int durationSec) {
+        System.out.println();
+        System.out.printf("%-8s %8s %9s %9s %9s %9s %9s %8s %8s%n",
+                "op", "count", "req/s", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "err%", "503%");
+        long total = 0;
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            List<Long> lat;
+            synchronized (e.getValue().latenciesNanos) {
+                lat = new ArrayList<>(e.getValue().latenciesNanos);
+            }
+            Collections.sort(lat);
+            int n = lat.size();
+            total += n;
+            System.out.printf("%-8s %8d %9.1f %9.2f %9.2f %9.2f %9.2f %8.2f %8.2f%n",
+                    e.getKey(), n, n / (double) durationSec,
+                    percentile(lat, 50), percentile(lat, 90), percentile(lat, 99),
+                    n == 0 ? 0 : lat.get(n - 1) / 1e6,
+                    n == 0 ? 0 : 100.0 * e.getValue().errors.get() / n,
+                    n == 0 ? 0 : 100.0 * e.getValue().rejected.get() / n);
+        }
+        System.out.printf("%nTổng: %d request, %.1f req/s%n", total, total / (double) durationSec);
+    }
+
+    private static double percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) return 0;
+        int idx = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, idx)) / 1e6;
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return opts;
+    }
+}
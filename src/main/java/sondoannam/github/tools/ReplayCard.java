@@ -0,0 +1,184 @@
+package sondoannam.github.tools;
+
+import sondoannam.github.services.ApduRecorder;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thẻ "phát lại" từ file ghi APDU (ApduRecorder): mỗi lệnh middleware gửi xuống được trả
+ * đúng response đã ghi, sau đúng thời gian thẻ thật đã xử lý (nhân hệ số latencyScale).
+ * Dùng để chạy lại 1 phiên thật (vd. /get-raw-data + /upload-image) offline và so sánh
+ * các phiên bản middleware trên cùng hành vi thẻ.
+ * <p>
+ * Ghép lệnh với bản ghi: tìm trong cửa sổ các bản ghi chưa dùng gần nhất, ưu tiên bản ghi
+ * trùng nguyên lệnh, không có thì lấy bản ghi cùng header (CLA/INS/P1/P2) và đếm là lệch
+ * (phiên bản middleware mới có thể gửi dữ liệu khác, hoặc nhiều luồng xen kẽ theo thứ tự khác).
+ * Không tìm được -> SW 6F00 và đếm là thiếu; riêng SELECT không có trong bản ghi
+ * (bắt đầu ghi sau khi đã kết nối) thì trả 9000.
+ */
+public class ReplayCard extends Card {
+    // Số bản ghi chưa dùng xét tới khi ghép lệnh
+    private static final int MATCH_WINDOW = 256;
+
+    private final List<ApduRecorder.Exchange> log;
+    private final boolean[] used;
+    private final double latencyScale;
+    private final int maxLogicalChannels;
+    private final boolean[] channelOpen = {true, false, false, false};
+    private final ReplayCardChannel basicChannel = new ReplayCardChannel(this, 0);
+
+    private int cursor;
+    private int matched;
+    private int mismatched;
+    private int missing;
+
+    /**
+     * @param log          Các lần trao đổi của 1 đầu đọc, theo thứ tự ghi
+     * @param latencyScale Hệ số nhân thời gian xử lý đã ghi (1 = như thẻ thật, 0 = không trễ)
+     */
+    public ReplayCard(List<ApduRecorder.Exchange> log, double latencyScale) {
+        this.log = new ArrayList<>(log);
+        this.used = new boolean[log.size()];
+        this.latencyScale = latencyScale;
+        int maxChannel = 0;
+        for (ApduRecorder.Exchange e : log) maxChannel = Math.max(maxChannel, e.channel);
+        // Phiên gốc không dùng kênh logic thì phát lại cũng không cho mở
+        this.maxLogicalChannels = Math.min(3, maxChannel);
+    }
+
+    /**
+     * Đọc file ghi và lấy phần của 1 đầu đọc
+     *
+     * @param reader Tên đầu đọc, null = đầu đọc của bản ghi đầu tiên
+     */
+    public static ReplayCard load(Path file, String reader, double latencyScale) throws IOException {
+        List<ApduRecorder.Exchange> all = ApduRecorder.read(file);
+        if (all.isEmpty()) throw new IOException("APDU log is empty: " + file);
+        String name = reader != null ? reader : all.get(0).reader;
+        List<ApduRecorder.Exchange> mine = new ArrayList<>();
+        for (ApduRecorder.Exchange e : all) {
+            if (name.equals(e.reader)) mine.add(e);
+        }
+        if (mine.isEmpty()) throw new IOException("No exchanges for reader '" + name + "' in " + file);
+        return new ReplayCard(mine, latencyScale);
+    }
+
+    @Override
+    public ATR getATR() {
+        return new ATR(new byte[]{0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01});
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        return basicChannel;
+    }
+
+    @Override
+    public synchronized CardChannel openLogicalChannel() throws CardException {
+        for (int n = 1; n <= maxLogicalChannels; n++) {
+            if (!channelOpen[n]) {
+                channelOpen[n] = true;
+                return new ReplayCardChannel(this, n);
+            }
+        }
+        throw new CardException(maxLogicalChannels == 0
+                ? "Logical channels not used in recorded session" : "No free logical channel");
+    }
+
+    synchronized void closeChannel(int n) {
+        channelOpen[n] = false;
+    }
+
+    @Override
+    public void beginExclusive() {
+    }
+
+    @Override
+    public void endExclusive() {
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+        throw new CardException("Control commands not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) {
+    }
+
+    /**
+     * Trả response đã ghi cho 1 lệnh, [DATA][SW1][SW2]
+     */
+    synchronized byte[] process(byte[] apdu) throws CardException {
+        int index = find(apdu);
+        if (index < 0) {
+            missing++;
+            boolean select = apdu.length >= 2 && (apdu[1] & 0xFF) == 0xA4;
+            return select ? new byte[]{(byte) 0x90, 0x00} : new byte[]{0x6F, 0x00};
+        }
+        used[index] = true;
+        while (cursor < used.length && used[cursor]) cursor++;
+
+        ApduRecorder.Exchange e = log.get(index);
+        simulateLatency(e.durationMicros);
+        if (e.response == null) throw new CardException("Recorded transmit failure");
+        return e.response.clone();
+    }
+
+    private int find(byte[] apdu) {
+        int end = Math.min(used.length, cursor + MATCH_WINDOW);
+        int sameHeader = -1;
+        for (int i = cursor; i < end; i++) {
+            if (used[i]) continue;
+            byte[] cmd = log.get(i).command;
+            if (!sameHeader(cmd, apdu)) continue;
+            if (Arrays.equals(cmd, 1, cmd.length, apdu, 1, apdu.length)) {
+                matched++;
+                return i;
+            }
+            if (sameHeader < 0) sameHeader = i;
+        }
+        if (sameHeader >= 0) mismatched++;
+        return sameHeader;
+    }
+
+    // So CLA (bỏ 2 bit số kênh logic), INS, P1, P2
+    private static boolean sameHeader(byte[] a, byte[] b) {
+        if (a.length < 4 || b.length < 4) return false;
+        return (a[0] & 0xBC) == (b[0] & 0xBC) && a[1] == b[1] && a[2] == b[2] && a[3] == b[3];
+    }
+
+    private void simulateLatency(long recordedMicros) {
+        long micros = (long) (recordedMicros * latencyScale);
+        if (micros <= 0) return;
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Thống kê phát lại: khớp nguyên lệnh / chỉ khớp header / không có trong bản ghi / bản ghi chưa dùng
+     */
+    public synchronized String summary() {
+        int unused = 0;
+        for (boolean u : used) if (!u) unused++;
+        return String.format("matched=%d, mismatched=%d, missing=%d, unused=%d/%d",
+                matched, mismatched, missing, unused, used.length);
+    }
+}
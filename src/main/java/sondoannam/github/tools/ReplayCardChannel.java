@@ -0,0 +1,52 @@
+package sondoannam.github.tools;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * CardChannel trả response từ file ghi APDU qua ReplayCard
+ */
+public class ReplayCardChannel extends CardChannel {
+    private final ReplayCard card;
+    private final int channelNumber;
+
+    ReplayCardChannel(ReplayCard card, int channelNumber) {
+        this.card = card;
+        this.channelNumber = channelNumber;
+    }
+
+    @Override
+    public Card getCard() {
+        return card;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return channelNumber;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        return new ResponseAPDU(card.process(command.getBytes()));
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        byte[] cmd = new byte[command.remaining()];
+        command.get(cmd);
+        byte[] res = card.process(cmd);
+        if (response.remaining() < res.length) throw new CardException("Response buffer too small");
+        response.put(res);
+        return res.length;
+    }
+
+    @Override
+    public void close() {
+        // Kênh cơ bản không đóng được
+        if (channelNumber > 0) card.closeChannel(channelNumber);
+    }
+}
@@ -0,0 +1,311 @@
+package sondoannam.github.tools;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thẻ giả lập trong bộ nhớ, mô phỏng Applet (cùng INS, cùng SW) để chạy middleware
+ * mà không cần đầu đọc thật: load test, replay... Mỗi APDU bị trễ một khoảng cấu hình được,
+ * và thẻ chỉ xử lý 1 APDU tại 1 thời điểm như thẻ thật.
+ */
+public class SimulatedCard extends Card {
+    private static final byte[] APPLET_AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0A, 0x01, 0x00};
+    private static final int MAX_IMAGE_SIZE = 4200;
+    private static final int MAX_PIN_TRIES = 3;
+    private static final String DEFAULT_PIN = "123456";
+
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final int maxLogicalChannels;
+    private final SecureRandom random = new SecureRandom();
+    private final SimulatedCardChannel basicChannel = new SimulatedCardChannel(this, 0);
+
+    // --- Trạng thái Applet ---
+    private final byte[] cardId = new byte[8];
+    private byte[] pin = DEFAULT_PIN.getBytes();
+    private int triesLeft = MAX_PIN_TRIES;
+    private boolean validated = false;
+    // Applet đã SELECT trên từng kênh (0 = kênh cơ bản, 1..3 = kênh logic)
+    private final boolean[] selected = new boolean[4];
+    private final boolean[] channelOpen = {true, false, false, false};
+    private KeyPair keyPair;
+    private byte[] encryptedInfo = new byte[0];
+    private final byte[] image = new byte[MAX_IMAGE_SIZE];
+    private int imageLen = 0;
+    private int points = 0;
+
+    /**
+     * @param latencyMicros Độ trễ cố định mỗi APDU (µs)
+     * @param jitterMicros  Độ trễ ngẫu nhiên cộng thêm, 0..jitter (µs)
+     */
+    public SimulatedCard(long latencyMicros, long jitterMicros) {
+        this(latencyMicros, jitterMicros, 3);
+    }
+
+    /**
+     * @param maxLogicalChannels Số kênh logic mở được (0..3), 0 = như thẻ không hỗ trợ kênh logic
+     */
+    public SimulatedCard(long latencyMicros, long jitterMicros, int maxLogicalChannels) {
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.maxLogicalChannels = Math.max(0, Math.min(3, maxLogicalChannels));
+        random.nextBytes(cardId);
+    }
+
+    @Override
+    public ATR getATR() {
+        return new ATR(new byte[]{0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01});
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        return basicChannel;
+    }
+
+    @Override
+    public synchronized CardChannel openLogicalChannel() throws CardException {
+        for (int n = 1; n <= maxLogicalChannels; n++) {
+            if (!channelOpen[n]) {
+                channelOpen[n] = true;
+                return new SimulatedCardChannel(this, n);
+            }
+        }
+        throw new CardException(maxLogicalChannels == 0
+                ? "Logical channels not supported by simulated card" : "No free logical channel");
+    }
+
+    synchronized void closeChannel(int n) {
+        channelOpen[n] = false;
+        selected[n] = false;
+    }
+
+    @Override
+    public void beginExclusive() {
+    }
+
+    @Override
+    public void endExclusive() {
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+        throw new CardException("Control commands not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) {
+        if (reset) {
+            validated = false;
+            Arrays.fill(selected, false);
+        }
+    }
+
+    private void simulateLatency() {
+        long micros = latencyMicros + (jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0);
+        if (micros <= 0) return;
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Xử lý 1 APDU, trả về [DATA][SW1][SW2]
+     */
+    synchronized byte[] process(byte[] apdu) {
+        simulateLatency();
+        CommandAPDU cmd;
+        try {
+            cmd = new CommandAPDU(apdu);
+        } catch (IllegalArgumentException e) {
+            return sw(0x6700);
+        }
+
+        // CLA liên ngành: 2 bit thấp là số kênh logic. CLA độc quyền (bit 8 = 1, vd. A0 của Applet)
+        // không mang số kênh -> thẻ coi là kênh cơ bản
+        boolean proprietary = (cmd.getCLA() & 0x80) != 0;
+        int ch = proprietary ? 0 : cmd.getCLA() & 0x03;
+        int cla = proprietary ? cmd.getCLA() : cmd.getCLA() & 0xBC;
+        if (!channelOpen[ch]) return sw(0x6881);
+        if (cla == 0x00 && cmd.getINS() == 0xA4) {
+            selected[ch] = Arrays.equals(cmd.getData(), APPLET_AID);
+            return sw(selected[ch] ? 0x9000 : 0x6A82);
+        }
+        if (!selected[ch]) return sw(0x6985);
+        if (cla != 0xA0) return sw(0x6E00);
+
+        try {
+            switch (cmd.getINS()) {
+                case 0x01: return register(cmd.getData());
+                case 0x02: return verifyPin(cmd.getData());
+                case 0x04: return changePin(cmd.getData());
+                case 0x05: return unblockPin();
+                case 0x06: return getCardId();
+                case 0x10: return writeImage(offset(cmd), cmd.getData());
+                case 0x11: return readImage(offset(cmd), cmd.getNe());
+                case 0x21: return setInfo(cmd.getData());
+                case 0x22: return getInfoSecure(cmd.getData());
+                case 0x25: return ok(encryptedInfo);
+                case 0x33: return sign(cmd.getData());
+                case 0x40: return ok(new byte[]{(byte) (points >> 8), (byte) points});
+                case 0x41: return updatePoints(cmd.getData());
+                default: return sw(0x6D00);
+            }
+        } catch (Exception e) {
+            return sw(0x6F00);
+        }
+    }
+
+    private static int offset(CommandAPDU cmd) {
+        return (cmd.getP1() << 8) | cmd.getP2();
+    }
+
+    private byte[] register(byte[] data) throws Exception {
+        pin = Arrays.copyOfRange(data, 1, 1 + (data[0] & 0xFF));
+        triesLeft = MAX_PIN_TRIES;
+        validated = true;
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        keyPair = gen.generateKeyPair();
+        RSAPublicKey pub = (RSAPublicKey) keyPair.getPublic();
+        byte[] mod = unsigned(pub.getModulus());
+        byte[] exp = unsigned(pub.getPublicExponent());
+
+        byte[] out = new byte[8 + 2 + mod.length + 2 + exp.length];
+        System.arraycopy(cardId, 0, out, 0, 8);
+        out[8] = (byte) (mod.length >> 8);
+        out[9] = (byte) mod.length;
+        System.arraycopy(mod, 0, out, 10, mod.length);
+        int e = 10 + mod.length;
+        out[e] = (byte) (exp.length >> 8);
+        out[e + 1] = (byte) exp.length;
+        System.arraycopy(exp, 0, out, e + 2, exp.length);
+        return ok(out);
+    }
+
+    private static byte[] unsigned(BigInteger v) {
+        byte[] b = v.toByteArray();
+        return b[0] == 0 ? Arrays.copyOfRange(b, 1, b.length) : b;
+    }
+
+    private byte[] verifyPin(byte[] candidate) {
+        if (triesLeft == 0) return sw(0x6983);
+        if (Arrays.equals(candidate, pin)) {
+            triesLeft = MAX_PIN_TRIES;
+            validated = true;
+            return sw(0x9000);
+        }
+        triesLeft--;
+        validated = false;
+        return sw(triesLeft == 0 ? 0x6983 : 0x63C0 | triesLeft);
+    }
+
+    private byte[] changePin(byte[] data) throws Exception {
+        if (!validated) return sw(0x6982);
+        int oldLen = data[0] & 0xFF;
+        byte[] oldPin = Arrays.copyOfRange(data, 1, 1 + oldLen);
+        byte[] newPin = Arrays.copyOfRange(data, 2 + oldLen, 2 + oldLen + (data[1 + oldLen] & 0xFF));
+        if (!Arrays.equals(oldPin, pin)) {
+            triesLeft--;
+            return sw(triesLeft == 0 ? 0x6983 : 0x63C0 | triesLeft);
+        }
+        byte[] plain = aes(Cipher.DECRYPT_MODE, pin, encryptedInfo);
+        pin = newPin;
+        encryptedInfo = aes(Cipher.ENCRYPT_MODE, pin, plain);
+        return sw(0x9000);
+    }
+
+    private byte[] unblockPin() {
+        pin = DEFAULT_PIN.getBytes();
+        triesLeft = MAX_PIN_TRIES;
+        return sw(0x9000);
+    }
+
+    private byte[] getCardId() {
+        byte[] out = Arrays.copyOf(cardId, 9);
+        out[8] = (byte) (triesLeft == 0 ? 0x01 : 0x00);
+        return ok(out);
+    }
+
+    private byte[] writeImage(int offset, byte[] data) {
+        if (offset + data.length > MAX_IMAGE_SIZE) return sw(0x6700);
+        System.arraycopy(data, 0, image, offset, data.length);
+        // Ghi lại từ offset 0 nghĩa là ảnh mới
+        imageLen = offset == 0 ? data.length : Math.max(imageLen, offset + data.length);
+        return sw(0x9000);
+    }
+
+    private byte[] readImage(int offset, int le) {
+        if (offset >= imageLen) return sw(0x9000);
+        int len = Math.min(le == 0 ? 256 : le, imageLen - offset);
+        return ok(Arrays.copyOfRange(image, offset, offset + len));
+    }
+
+    private byte[] setInfo(byte[] data) throws Exception {
+        int pinLen = data[0] & 0xFF;
+        if (!Arrays.equals(Arrays.copyOfRange(data, 1, 1 + pinLen), pin)) return sw(0x6982);
+        encryptedInfo = aes(Cipher.ENCRYPT_MODE, pin, Arrays.copyOfRange(data, 1 + pinLen, data.length));
+        return sw(0x9000);
+    }
+
+    private byte[] getInfoSecure(byte[] data) throws Exception {
+        int pinLen = data[0] & 0xFF;
+        if (!Arrays.equals(Arrays.copyOfRange(data, 1, 1 + pinLen), pin)) return sw(0x6982);
+        return ok(aes(Cipher.DECRYPT_MODE, pin, encryptedInfo));
+    }
+
+    private byte[] sign(byte[] challenge) throws Exception {
+        if (!validated || keyPair == null) return sw(0x6982);
+        Signature sig = Signature.getInstance("SHA1withRSA");
+        sig.initSign(keyPair.getPrivate());
+        sig.update(challenge);
+        return ok(sig.sign());
+    }
+
+    private byte[] updatePoints(byte[] data) {
+        if (!validated) return sw(0x6982);
+        points = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+        return sw(0x9000);
+    }
+
+    // Khóa AES = 16 byte đầu SHA-256(PIN), dữ liệu đã pad 0x00 đủ block
+    private static byte[] aes(int mode, byte[] pin, byte[] data) throws Exception {
+        if (data.length == 0) return data;
+        byte[] key = Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(pin), 16);
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(data);
+    }
+
+    private static byte[] ok(byte[] data) {
+        byte[] out = Arrays.copyOf(data, data.length + 2);
+        out[data.length] = (byte) 0x90;
+        out[data.length + 1] = 0x00;
+        return out;
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[]{(byte) (sw >> 8), (byte) sw};
+    }
+}
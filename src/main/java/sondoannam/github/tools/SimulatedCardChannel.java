@@ -0,0 +1,62 @@
+package sondoannam.github.tools;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * CardChannel trong bộ nhớ, chuyển APDU thẳng vào SimulatedCard
+ */
+public class SimulatedCardChannel extends CardChannel {
+    private final SimulatedCard card;
+    private final int channelNumber;
+
+    SimulatedCardChannel(SimulatedCard card, int channelNumber) {
+        this.card = card;
+        this.channelNumber = channelNumber;
+    }
+
+    @Override
+    public Card getCard() {
+        return card;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return channelNumber;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        return new ResponseAPDU(card.process(withChannel(command.getBytes())));
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        byte[] cmd = new byte[command.remaining()];
+        command.get(cmd);
+        byte[] res = card.process(withChannel(cmd));
+        if (response.remaining() < res.length) throw new CardException("Response buffer too small");
+        response.put(res);
+        return res.length;
+    }
+
+    // Làm đúng như ChannelImpl.setChannel của SunPCSC: CLA độc quyền (bit 8 = 1) và CLA 001x xxxx
+    // (ISO để dành) giữ nguyên -> lệnh đó thực chất đi trên kênh cơ bản; CLA liên ngành thì ghi số kênh
+    // vào 2 bit thấp (kênh 1..3)
+    private byte[] withChannel(byte[] apdu) {
+        int cla = apdu[0] & 0xFF;
+        if (channelNumber == 0 || (cla & 0x80) != 0 || (cla & 0xE0) == 0x20) return apdu;
+        apdu[0] = (byte) ((cla & 0xBC) | channelNumber);
+        return apdu;
+    }
+
+    @Override
+    public void close() {
+        // Kênh cơ bản không đóng được
+        if (channelNumber > 0) card.closeChannel(channelNumber);
+    }
+}
@@ -0,0 +1,39 @@
+package sondoannam.github;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MainRangeTest {
+
+    @Test
+    void closedRange() {
+        assertArrayEquals(new int[]{10, 19}, Main.parseRange("bytes=10-19"));
+        assertArrayEquals(new int[]{0, 0}, Main.parseRange("bytes=0-0"));
+        assertArrayEquals(new int[]{10, 19}, Main.parseRange("bytes= 10 - 19 "));
+    }
+
+    @Test
+    void openEndedRange() {
+        assertArrayEquals(new int[]{995, -1}, Main.parseRange("bytes=995-"));
+    }
+
+    @Test
+    void suffixRange() {
+        assertArrayEquals(new int[]{-1, 5}, Main.parseRange("bytes=-5"));
+    }
+
+    @Test
+    void unsupportedOrMalformedFallsBackToFullImage() {
+        assertNull(Main.parseRange(null));
+        assertNull(Main.parseRange(""));
+        assertNull(Main.parseRange("items=0-10"));
+        assertNull(Main.parseRange("bytes=0-10,20-30"));
+        assertNull(Main.parseRange("bytes=20-10"));
+        assertNull(Main.parseRange("bytes=-"));
+        assertNull(Main.parseRange("bytes=10"));
+        assertNull(Main.parseRange("bytes=a-b"));
+        assertNull(Main.parseRange("bytes=99999999999-"));
+    }
+}
@@ -0,0 +1,189 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sondoannam.github.tools.SimulatedCard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ApduRecorderTest {
+    private static final String PIN = "1234";
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        ApduRecorder.stop();
+    }
+
+    private static byte[] varint(long value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ApduRecorder.writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for (int i = 0; i < values.length; i++) out[i] = (byte) values[i];
+        return out;
+    }
+
+    private static ApduRecorder.Exchange find(List<ApduRecorder.Exchange> log, int ins) {
+        for (ApduRecorder.Exchange e : log) {
+            if (e.command.length > 1 && (e.command[1] & 0xFF) == ins) return e;
+        }
+        throw new AssertionError("No exchange with INS " + Integer.toHexString(ins));
+    }
+
+    // Ghi 1 phiên ngắn trên SimulatedCard: đăng ký, verify PIN, ghi/đọc info, đọc điểm
+    private Path recordSession() throws IOException {
+        CardService service = new CardService();
+        assertTrue(service.attach(new SimulatedCard(0, 0)));
+        ApduRecorder.start(dir);
+        assertTrue(service.registerCard(PIN).isOk());
+        assertTrue(service.verifyPin(PIN).success);
+        assertTrue(service.updateUserInfo(PIN, "Nguyen Van A|0123456789").isOk());
+        assertTrue(service.getSecureInfo(PIN).isOk());
+        assertEquals(0, service.getPoints());
+        return ApduRecorder.stop();
+    }
+
+    @Test
+    void varintUsesLeb128Encoding() throws IOException {
+        assertArrayEquals(bytes(0x00), varint(0));
+        assertArrayEquals(bytes(0x7F), varint(127));
+        assertArrayEquals(bytes(0x80, 0x01), varint(128));
+        assertArrayEquals(bytes(0xFF, 0x7F), varint(16383));
+        assertArrayEquals(bytes(0x80, 0x80, 0x01), varint(16384));
+        assertEquals(9, varint(Long.MAX_VALUE).length);
+    }
+
+    @Test
+    void varintRoundTrip() throws IOException {
+        for (long v : new long[]{0, 1, 127, 128, 255, 16383, 16384, 1L << 32, Long.MAX_VALUE}) {
+            assertEquals(v, ApduRecorder.readVarint(new ByteArrayInputStream(varint(v))), "value " + v);
+        }
+    }
+
+    @Test
+    void truncatedVarintThrowsEof() throws IOException {
+        byte[] two = varint(16383);
+        assertThrows(EOFException.class,
+                () -> ApduRecorder.readVarint(new ByteArrayInputStream(Arrays.copyOf(two, 1))));
+    }
+
+    @Test
+    void fileStartsWithHeader() throws IOException {
+        Path file = recordSession();
+        byte[] raw = Files.readAllBytes(file);
+        assertArrayEquals("APDL".getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(raw, 4));
+        assertEquals(1, raw[4]);
+        // Header 13 byte rồi khai báo đầu đọc đầu tiên
+        assertEquals(0x01, raw[13]);
+    }
+
+    @Test
+    void recordedSessionReadsBack() throws IOException {
+        Path file = recordSession();
+        List<ApduRecorder.Exchange> log = ApduRecorder.read(file);
+
+        assertFalse(log.isEmpty());
+        ApduRecorder.Exchange points = find(log, 0x40);
+        assertEquals(0, points.channel);
+        assertEquals("", points.reader);
+        assertArrayEquals(bytes(0x00, 0x00, 0x90, 0x00), points.response);
+        assertEquals(0x9000, points.sw());
+        long last = -1;
+        for (ApduRecorder.Exchange e : log) {
+            assertTrue(e.startMicros >= last);
+            last = e.startMicros;
+        }
+    }
+
+    @Test
+    void secretsNeverReachTheFile() throws IOException {
+        Path file = recordSession();
+        List<ApduRecorder.Exchange> log = ApduRecorder.read(file);
+
+        for (int ins : new int[]{0x01, 0x02, 0x21, 0x22}) {
+            ApduRecorder.Exchange e = find(log, ins);
+            assertTrue(e.command.length > 5, "INS " + ins);
+            // Header và Lc giữ nguyên, data toàn 0
+            assertEquals(ins, e.command[1] & 0xFF);
+            for (int i = 5; i < e.command.length - 1; i++) assertEquals(0, e.command[i], "INS " + ins + " byte " + i);
+        }
+        ApduRecorder.Exchange info = find(log, 0x22);
+        assertNotNull(info.response);
+        assertEquals(0x9000, info.sw());
+        for (int i = 0; i < info.response.length - 2; i++) assertEquals(0, info.response[i]);
+
+        String raw = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(raw.contains("Nguyen Van A"));
+        assertFalse(raw.contains(PIN));
+    }
+
+    @Test
+    void truncatedFileKeepsCompleteRecords() throws IOException {
+        Path file = recordSession();
+        int full = ApduRecorder.read(file).size();
+        byte[] raw = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(raw, raw.length - 3));
+        List<ApduRecorder.Exchange> log = ApduRecorder.read(file);
+        assertEquals(full - 1, log.size());
+    }
+
+    @Test
+    void notAnApduLogIsRejected() throws IOException {
+        Path file = dir.resolve("bogus.apdulog");
+        Files.write(file, "HELLO WORLD!!!".getBytes(StandardCharsets.US_ASCII));
+        assertThrows(IOException.class, () -> ApduRecorder.read(file));
+    }
+
+    @Test
+    void redactCommandZeroesShortApduData() {
+        byte[] verify = bytes(0xA0, 0x02, 0x00, 0x00, 0x05, 0x04, '1', '2', '3', '4');
+        assertArrayEquals(bytes(0xA0, 0x02, 0x00, 0x00, 0x05, 0, 0, 0, 0, 0), ApduRecorder.redactCommand(verify));
+        // Có Le sau data: Le giữ nguyên
+        byte[] withLe = bytes(0xA0, 0x22, 0x00, 0x00, 0x02, '1', '2', 0x00);
+        assertArrayEquals(bytes(0xA0, 0x22, 0x00, 0x00, 0x02, 0, 0, 0x00), ApduRecorder.redactCommand(withLe));
+        // Không sửa mảng gốc
+        assertEquals('1', verify[6]);
+    }
+
+    @Test
+    void redactCommandZeroesExtendedApduData() {
+        byte[] extended = bytes(0xA0, 0x21, 0x00, 0x00, 0x00, 0x00, 0x03, 'a', 'b', 'c');
+        assertArrayEquals(bytes(0xA0, 0x21, 0x00, 0x00, 0x00, 0x00, 0x03, 0, 0, 0), ApduRecorder.redactCommand(extended));
+    }
+
+    @Test
+    void redactCommandLeavesCaseOneAndTwoAlone() {
+        byte[] caseTwo = bytes(0xA0, 0x22, 0x00, 0x00, 0x10);
+        assertArrayEquals(caseTwo, ApduRecorder.redactCommand(caseTwo));
+    }
+
+    @Test
+    void redactResponseKeepsStatusWord() {
+        assertArrayEquals(bytes(0, 0, 0, 0x90, 0x00), ApduRecorder.redactResponse(bytes('a', 'b', 'c', 0x90, 0x00)));
+        assertArrayEquals(bytes(0x69, 0x82), ApduRecorder.redactResponse(bytes(0x69, 0x82)));
+        assertEquals(null, ApduRecorder.redactResponse(null));
+    }
+}
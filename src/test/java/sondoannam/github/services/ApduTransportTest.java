@@ -0,0 +1,30 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ApduTransportTest {
+
+    @Test
+    void getResponseOnProprietaryClaGoesToBasicChannel() {
+        // CLA A0 của Applet không mang số kênh
+        assertEquals(0x00, ApduTransport.getResponseCla(0xA0));
+        assertEquals(0x00, ApduTransport.getResponseCla(0xA3));
+    }
+
+    @Test
+    void getResponseKeepsFirstInterindustryChannel() {
+        assertEquals(0x00, ApduTransport.getResponseCla(0x00));
+        assertEquals(0x02, ApduTransport.getResponseCla(0x02));
+        // Bỏ bit secure messaging
+        assertEquals(0x03, ApduTransport.getResponseCla(0x0F));
+    }
+
+    @Test
+    void getResponseKeepsFurtherInterindustryChannel() {
+        // Kênh 4 + 9 = 13
+        assertEquals(0x49, ApduTransport.getResponseCla(0x49));
+        assertEquals(0x4F, ApduTransport.getResponseCla(0x6F));
+    }
+}
@@ -0,0 +1,168 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CardMirrorStoreTest {
+    private static final String CARD_A = "0011223344556677";
+    private static final String CARD_B = "8899AABBCCDDEEFF";
+    // MAGIC + KIND + ID_LEN + CARD_ID(16) + DATA_LEN(4)
+    private static final int HEADER = 3 + 16 + 4;
+
+    @TempDir
+    Path dir;
+
+    private Path file() {
+        return dir.resolve("mirror.dat");
+    }
+
+    @Test
+    void recordLayoutMatchesDocumentedFormat() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2, 3});
+        }
+
+        ByteBuffer expected = ByteBuffer.allocate(HEADER + 3);
+        expected.put((byte) 0xCD).put((byte) CardMirrorStore.Kind.IMAGE.ordinal()).put((byte) 16)
+                .put(CARD_A.getBytes(StandardCharsets.US_ASCII)).putInt(3).put(new byte[]{1, 2, 3});
+        assertArrayEquals(expected.array(), Files.readAllBytes(file()));
+    }
+
+    @Test
+    void latestRecordWinsAfterReopen() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1});
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{2, 2});
+            store.put(CARD_B, CardMirrorStore.Kind.USER_INFO, new byte[]{3});
+        }
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertArrayEquals(new byte[]{2, 2}, store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+            assertArrayEquals(new byte[]{3}, store.get(CARD_B, CardMirrorStore.Kind.USER_INFO));
+            assertNull(store.get(CARD_A, CardMirrorStore.Kind.USER_INFO));
+        }
+    }
+
+    @Test
+    void identicalPutIsNotAppended() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2, 3});
+            long size = Files.size(file());
+
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2, 3});
+            assertEquals(size, Files.size(file()));
+
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2, 4});
+            assertEquals(size + HEADER + 3, Files.size(file()));
+        }
+    }
+
+    @Test
+    void tombstoneSurvivesReopen() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2});
+            store.invalidate(CARD_A, CardMirrorStore.Kind.IMAGE);
+            assertNull(store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+        }
+        // Tombstone: header với DATA_LEN = -1, không có data
+        assertEquals(2L * HEADER + 2, Files.size(file()));
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertNull(store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+        }
+    }
+
+    @Test
+    void tornTailIsTruncatedOnOpen() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1, 2, 3});
+        }
+        long intact = Files.size(file());
+
+        // Record cuối bị cắt giữa phần data (tắt máy khi đang ghi)
+        ByteBuffer torn = ByteBuffer.allocate(HEADER + 2);
+        torn.put((byte) 0xCD).put((byte) CardMirrorStore.Kind.USER_INFO.ordinal()).put((byte) 16)
+                .put(CARD_B.getBytes(StandardCharsets.US_ASCII)).putInt(10).put(new byte[]{9, 9}).flip();
+        try (FileChannel ch = FileChannel.open(file(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(torn);
+        }
+
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertArrayEquals(new byte[]{1, 2, 3}, store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+            assertNull(store.get(CARD_B, CardMirrorStore.Kind.USER_INFO));
+            // Ghi tiếp sau khi cắt đuôi vẫn đọc lại được
+            store.put(CARD_B, CardMirrorStore.Kind.USER_INFO, new byte[]{4});
+        }
+        assertEquals(intact + HEADER + 1, Files.size(file()));
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertArrayEquals(new byte[]{4}, store.get(CARD_B, CardMirrorStore.Kind.USER_INFO));
+        }
+    }
+
+    @Test
+    void garbageAfterLastRecordIsDropped() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{7});
+        }
+        long intact = Files.size(file());
+        Files.write(file(), new byte[]{0x00, 0x11, 0x22, 0x33, 0x44}, StandardOpenOption.APPEND);
+
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertArrayEquals(new byte[]{7}, store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+        }
+        assertEquals(intact, Files.size(file()));
+    }
+
+    @Test
+    void compactionKeepsOnlyLiveRecords() throws IOException {
+        byte[] image = new byte[100];
+        for (int i = 0; i < image.length; i++) image[i] = (byte) i;
+
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            for (int i = 0; i < 5; i++) store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[100 + i]);
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, image);
+            store.put(CARD_B, CardMirrorStore.Kind.USER_INFO, new byte[]{5});
+            store.invalidate(CARD_B, CardMirrorStore.Kind.USER_INFO);
+
+            store.compactIfNeeded();
+
+            // Chỉ còn 1 record sống: header + 100 byte
+            assertEquals(HEADER + 100L, Files.size(file()));
+            assertArrayEquals(image, store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+            assertNull(store.get(CARD_B, CardMirrorStore.Kind.USER_INFO));
+
+            // Vẫn ghi tiếp được sau khi thay file
+            store.put(CARD_B, CardMirrorStore.Kind.IMAGE, new byte[]{6});
+            assertArrayEquals(new byte[]{6}, store.get(CARD_B, CardMirrorStore.Kind.IMAGE));
+        }
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            assertArrayEquals(image, store.get(CARD_A, CardMirrorStore.Kind.IMAGE));
+            assertArrayEquals(new byte[]{6}, store.get(CARD_B, CardMirrorStore.Kind.IMAGE));
+        }
+    }
+
+    @Test
+    void compactionSkippedWhileMostBytesAreLive() throws IOException {
+        try (CardMirrorStore store = new CardMirrorStore(file())) {
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[100]);
+            store.put(CARD_B, CardMirrorStore.Kind.IMAGE, new byte[100]);
+            // 1 record 100 byte bị ghi đè: rác chưa tới nửa file (tính cả header) -> chưa compact
+            store.put(CARD_A, CardMirrorStore.Kind.IMAGE, new byte[]{1});
+            long before = Files.size(file());
+
+            store.compactIfNeeded();
+
+            assertEquals(before, Files.size(file()));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sondoannam.github.tools.SimulatedCard;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CardServiceImageRangeTest {
+    private static final String PIN = "1234";
+
+    private CardService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new CardService();
+        assertTrue(service.attach(new SimulatedCard(0, 0)));
+        assertTrue(service.registerCard(PIN).isOk());
+        assertTrue(service.verifyPin(PIN).success);
+    }
+
+    private static byte[] image(int size) {
+        byte[] img = new byte[size];
+        for (int i = 0; i < size; i++) img[i] = (byte) (i * 7 + 3);
+        return img;
+    }
+
+    private byte[] upload(int size) {
+        byte[] img = image(size);
+        assertTrue(service.uploadImage(img, PIN).isOk());
+        return img;
+    }
+
+    private CardService.ImageRange read(int first, int last) {
+        CardResult<CardService.ImageRange> result = service.readImageRange(PIN, first, last);
+        assertTrue(result.isOk(), result.toString());
+        return result.getValue();
+    }
+
+    private static void assertRange(byte[] img, int from, int toExclusive, CardService.ImageRange part) {
+        assertEquals(from, part.start);
+        assertArrayEquals(Arrays.copyOfRange(img, from, toExclusive), part.data);
+    }
+
+    @Test
+    void rangeInsideImageCrossesBlockBoundaries() {
+        // 1000 byte -> 1008 byte mã hoá (pad 8)
+        byte[] img = upload(1000);
+
+        assertRange(img, 0, 16, read(0, 15));
+        assertRange(img, 10, 41, read(10, 40));
+        assertRange(img, 15, 17, read(15, 16));
+        // Chưa chạm tới block cuối -> chưa biết kích thước
+        assertEquals(-1, read(10, 40).total);
+        assertEquals(-1, read(0, 975).total);
+        assertRange(img, 976, 992, read(976, 991));
+    }
+
+    @Test
+    void rangeInLastBlockStripsPadding() {
+        byte[] img = upload(1000);
+
+        CardService.ImageRange tail = read(990, 999);
+        assertRange(img, 990, 1000, tail);
+        assertEquals(1000, tail.total);
+
+        CardService.ImageRange open = read(995, -1);
+        assertRange(img, 995, 1000, open);
+        assertEquals(1000, open.total);
+    }
+
+    @Test
+    void rangePastEndIsClipped() {
+        byte[] img = upload(1000);
+
+        CardService.ImageRange clipped = read(992, 2000);
+        assertRange(img, 992, 1000, clipped);
+        assertEquals(1000, clipped.total);
+
+        // Bắt đầu trong phần padding của block cuối
+        CardService.ImageRange padding = read(1000, 1010);
+        assertEquals(0, padding.data.length);
+        assertEquals(1000, padding.total);
+
+        // Hoàn toàn sau dữ liệu trên thẻ
+        assertEquals(0, read(2000, 2100).data.length);
+    }
+
+    @Test
+    void wholeImageMatchesReadImage() {
+        byte[] img = upload(1000);
+
+        CardService.ImageRange all = read(0, -1);
+        assertRange(img, 0, 1000, all);
+        assertEquals(1000, all.total);
+        assertArrayEquals(service.readImage(PIN).getValue(), all.data);
+    }
+
+    @Test
+    void blockAlignedImageHasFullPaddingBlock() {
+        // 992 byte -> thêm nguyên 1 block padding, 1008 byte mã hoá
+        byte[] img = upload(992);
+
+        CardService.ImageRange last = read(980, 991);
+        assertRange(img, 980, 992, last);
+
+        CardService.ImageRange open = read(980, -1);
+        assertRange(img, 980, 992, open);
+        assertEquals(992, open.total);
+
+        CardService.ImageRange afterEnd = read(992, -1);
+        assertEquals(0, afterEnd.data.length);
+        assertEquals(992, afterEnd.total);
+    }
+
+    @Test
+    void smallImageFitsInOneBlock() {
+        byte[] img = upload(5);
+
+        CardService.ImageRange all = read(0, -1);
+        assertRange(img, 0, 5, all);
+        assertEquals(5, all.total);
+        assertRange(img, 2, 4, read(2, 3));
+    }
+}
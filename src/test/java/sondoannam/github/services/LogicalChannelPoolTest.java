@@ -0,0 +1,50 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.Test;
+import sondoannam.github.tools.SimulatedCard;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogicalChannelPoolTest {
+    private static final byte[] AID = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x03, 0x01, 0x0A, 0x01, 0x00};
+
+    @Test
+    void proprietaryClaDisablesPool() {
+        LogicalChannelPool pool = new LogicalChannelPool(new SimulatedCard(0, 0), "sim", AID, 0xA0, 3);
+        assertFalse(pool.isSupported());
+        assertFalse(pool.canOpen());
+        assertNull(pool.open());
+    }
+
+    @Test
+    void interindustryClaOpensSelectedChannel() {
+        LogicalChannelPool pool = new LogicalChannelPool(new SimulatedCard(0, 0), "sim", AID, 0x00, 3);
+        ApduTransport tr = pool.open();
+        assertNotNull(tr);
+        assertEquals(1, tr.getChannel().getChannelNumber());
+        pool.close();
+    }
+
+    @Test
+    void proprietaryCommandOnLogicalChannelReachesBasicChannel() throws CardException {
+        // Như SunPCSC: CLA A0 không được ghi số kênh -> thẻ nhận trên kênh cơ bản
+        SimulatedCard card = new SimulatedCard(0, 0);
+        ApduTransport logical = new ApduTransport(card.openLogicalChannel());
+        assertEquals(0x9000, logical.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, AID)).getSW());
+
+        // Applet chỉ SELECT trên kênh 1, kênh cơ bản chưa -> 6985
+        assertEquals(0x6985, logical.transmit(new CommandAPDU(0xA0, 0x40, 0x00, 0x00)).getSW());
+
+        ApduTransport basic = new ApduTransport(card.getBasicChannel());
+        assertEquals(0x9000, basic.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, AID)).getSW());
+        assertEquals(0x9000, logical.transmit(new CommandAPDU(0xA0, 0x40, 0x00, 0x00)).getSW());
+        assertTrue(LogicalChannelPool.isProprietary(0xA0));
+    }
+}
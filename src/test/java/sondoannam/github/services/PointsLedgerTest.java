@@ -0,0 +1,266 @@
+package sondoannam.github.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sondoannam.github.tools.SimulatedCard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PointsLedgerTest {
+    // Chỉ flush khi test gọi flushCurrentCard()
+    private static final long NO_AUTO_FLUSH_MS = 3_600_000;
+    private static final String OTHER_CARD = "8899AABBCCDDEEFF";
+
+    @TempDir
+    Path dir;
+
+    private CardService service;
+    private String cardId;
+    private PointsLedger ledger;
+
+    @BeforeEach
+    void setUp() {
+        service = new CardService();
+        assertTrue(service.attach(new SimulatedCard(0, 0)));
+        cardId = service.registerCard("1234").getValue().cardId;
+        assertTrue(service.verifyPin("1234").success);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (ledger != null) ledger.close();
+    }
+
+    private Path journal() {
+        return dir.resolve("points-journal.log");
+    }
+
+    private PointsLedger open() throws IOException {
+        if (ledger != null) ledger.close();
+        ledger = new PointsLedger(journal(), service, NO_AUTO_FLUSH_MS);
+        return ledger;
+    }
+
+    private void writeJournal(String... lines) throws IOException {
+        Files.write(journal(), (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void setCardPoints(int points) {
+        assertTrue(service.updatePoints(points).isOk());
+    }
+
+    @Test
+    void addsAreBatchedIntoOneWrite() throws IOException {
+        open();
+        assertEquals(10, ledger.add(cardId, 10));
+        assertEquals(15, ledger.add(cardId, 5));
+
+        ledger.flushCurrentCard();
+
+        assertEquals(15, service.getPoints());
+        assertEquals(0, ledger.getPending(cardId));
+        // Không còn gì chờ -> journal được cắt về rỗng
+        assertEquals(0, Files.size(journal()));
+    }
+
+    @Test
+    void addsSurviveRestartBeforeFlush() throws IOException {
+        open();
+        ledger.add(cardId, 7);
+        ledger.add(cardId, -2);
+
+        open();
+        assertEquals(5, ledger.getPending(cardId));
+        ledger.flushCurrentCard();
+        assertEquals(5, service.getPoints());
+    }
+
+    @Test
+    void clampedRemainderStaysPendingAcrossReplay() throws IOException {
+        setCardPoints(65530);
+        open();
+        ledger.add(cardId, 10);
+
+        ledger.flushCurrentCard();
+        assertEquals(65535, service.getPoints());
+        assertEquals(5, ledger.getPending(cardId));
+
+        open();
+        assertEquals(5, ledger.getPending(cardId));
+        setCardPoints(100);
+        ledger.flushCurrentCard();
+        assertEquals(105, service.getPoints());
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void overdraftKeepsDeltaWithoutWriting() throws IOException {
+        open();
+        ledger.add(cardId, -3);
+
+        ledger.flushCurrentCard();
+
+        assertEquals(0, service.getPoints());
+        assertEquals(-3, ledger.getPending(cardId));
+    }
+
+    @Test
+    void flushOnlyTouchesTheInsertedCard() throws IOException {
+        open();
+        ledger.add(OTHER_CARD, 4);
+        ledger.add(cardId, 1);
+
+        ledger.flushCurrentCard();
+
+        assertEquals(1, service.getPoints());
+        assertEquals(4, ledger.getPending(OTHER_CARD));
+    }
+
+    @Test
+    void pendingIntentAlreadyOnCardIsNotAppliedTwice() throws IOException {
+        // Tắt máy sau khi ghi thẻ, trước dòng FLUSH
+        setCardPoints(7);
+        writeJournal("ADD " + cardId + " 1 7", "INTENT " + cardId + " 1 0 7");
+        open();
+        assertEquals(7, ledger.getPending(cardId));
+
+        ledger.flushCurrentCard();
+
+        assertEquals(7, service.getPoints());
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void pendingIntentNotOnCardIsRewritten() throws IOException {
+        // Tắt máy sau dòng INTENT, trước khi ghi thẻ
+        writeJournal("ADD " + cardId + " 1 7", "INTENT " + cardId + " 1 0 7");
+        open();
+
+        ledger.flushCurrentCard(); // Đối chiếu: CANCEL
+        assertEquals(0, service.getPoints());
+        assertEquals(7, ledger.getPending(cardId));
+
+        ledger.flushCurrentCard();
+        assertEquals(7, service.getPoints());
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void pendingIntentWithUnknownOutcomeKeepsDelta() throws IOException {
+        setCardPoints(3);
+        writeJournal("ADD " + cardId + " 1 7", "INTENT " + cardId + " 1 0 7");
+        open();
+
+        ledger.flushCurrentCard();
+        ledger.flushCurrentCard();
+
+        assertEquals(3, service.getPoints());
+        assertEquals(7, ledger.getPending(cardId));
+    }
+
+    @Test
+    void cancelledIntentIsIgnoredOnReplay() throws IOException {
+        writeJournal("ADD " + cardId + " 1 7", "INTENT " + cardId + " 1 0 7", "CANCEL " + cardId + " 1");
+        open();
+
+        ledger.flushCurrentCard();
+
+        assertEquals(7, service.getPoints());
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void replayAppliesPartialAndLegacyFlushRecords() throws IOException {
+        writeJournal(
+                // Journal cũ: FLUSH 3 trường = đã ghi đủ
+                "ADD " + cardId + " 1 5", "ADD " + cardId + " 2 3", "FLUSH " + cardId + " 2",
+                "ADD " + cardId + " 3 4",
+                // Chỉ ghi được 6/10, còn chờ 4
+                "ADD " + OTHER_CARD + " 4 10", "FLUSH " + OTHER_CARD + " 4 6",
+                "ADD " + OTHER_CARD + " 5 1",
+                // Dòng cuối bị cụt
+                "ADD " + cardId + " 6");
+        open();
+
+        assertEquals(4, ledger.getPending(cardId));
+        assertEquals(5, ledger.getPending(OTHER_CARD));
+        // seq tiếp tục sau seq lớn nhất trong journal
+        ledger.add(cardId, 1);
+        assertTrue(Files.readString(journal()).endsWith("ADD " + cardId + " 6 1\n"));
+    }
+
+    @Test
+    void offsettingAddsLeaveNothingPending() throws IOException {
+        open();
+        ledger.add(cardId, 5);
+        assertEquals(0, ledger.add(cardId, -5));
+
+        assertEquals(0, Files.size(journal()));
+        open();
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void zeroSumJournalIsNotReplayedAsPending() throws IOException {
+        writeJournal("ADD " + cardId + " 1 5", "ADD " + cardId + " 2 -5", "ADD " + OTHER_CARD + " 3 2");
+        open();
+
+        ledger.flushCurrentCard();
+
+        assertEquals(0, service.getPoints());
+        assertEquals(2, ledger.getPending(OTHER_CARD));
+    }
+
+    @Test
+    void repeatedFlushFailureIsLoggedOnce() throws IOException {
+        // Nhập sai PIN -> thẻ mất trạng thái verify, ghi điểm bị 6982 mỗi chu kỳ
+        service.verifyPin("0000");
+        open();
+        ledger.add(cardId, 3);
+
+        PrintStream original = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            for (int i = 0; i < 5; i++) ledger.flushCurrentCard();
+        } finally {
+            System.setOut(original);
+        }
+
+        String log = captured.toString(StandardCharsets.UTF_8);
+        assertEquals(1, log.split("\\[WARN\\]", -1).length - 1, log);
+        assertEquals(3, ledger.getPending(cardId));
+    }
+
+    @Test
+    void invalidAddsAreRejected() throws IOException {
+        open();
+        assertThrows(IllegalArgumentException.class, () -> ledger.add("abc", 1));
+        assertThrows(IllegalArgumentException.class, () -> ledger.add(cardId.toLowerCase(), 1));
+        assertThrows(IllegalArgumentException.class, () -> ledger.add(cardId, 0));
+        assertThrows(IllegalArgumentException.class, () -> ledger.add(cardId, 0x10000));
+        assertThrows(IllegalArgumentException.class, () -> ledger.add(cardId, -0x10000));
+        assertEquals(0, ledger.getPending(cardId));
+    }
+
+    @Test
+    void pendingOverflowIsRejected() throws IOException {
+        writeJournal("ADD " + cardId + " 1 " + (Integer.MAX_VALUE - 10));
+        open();
+
+        assertThrows(IllegalArgumentException.class, () -> ledger.add(cardId, 11));
+        assertEquals(Integer.MAX_VALUE - 10, ledger.getPending(cardId));
+        assertEquals(Integer.MAX_VALUE, ledger.add(cardId, 10));
+    }
+}